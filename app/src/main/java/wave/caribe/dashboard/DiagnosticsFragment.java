@@ -0,0 +1,129 @@
+package wave.caribe.dashboard;
+
+import android.app.Fragment;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.services.MQTTService;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Hidden diagnostics screen, opened with a long press on the message box.
+ *
+ * Shows the startup trace, the metrics and the sensors last heard of, as kept
+ * in the history of the MQTT service, refreshed every second, and saves
+ * them to a file in the external files directory of the app on export.
+ */
+public class DiagnosticsFragment extends Fragment {
+
+    private static final String TAG = "CW:DIAGNOSTICS";
+    private static final int REFRESH_INTERVAL_MS = 1000;
+    private static final int RECENT_SENSORS = 20;
+
+    private final Handler mHandler = new Handler();
+    private TextView mText;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mText.setText(snapshot());
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_diagnostics, container, false);
+        mText = (TextView) view.findViewById(R.id.diagnostics);
+
+        setHasOptionsMenu(true);
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        menu.clear();
+        inflater.inflate(R.menu.diagnostics, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case R.id.action_export:
+                export();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private String snapshot() {
+        StringBuilder out = new StringBuilder();
+        out.append("Startup\n");
+        out.append(((MainActivity) getActivity()).getStartupTrace().format());
+        out.append("\nMetrics\n");
+        out.append(MetricsRegistry.getDefault().format());
+        MQTTService service = ((MainActivity) getActivity()).getMQTTService();
+        if (service != null) {
+            out.append("\nRecent sensors\n");
+            out.append(service.getTimeSeriesStore().format(RECENT_SENSORS, System.currentTimeMillis()));
+        }
+        return out.toString();
+    }
+
+    private void export() {
+        File directory = getActivity().getExternalFilesDir(null);
+        if (directory == null) {
+            // No external storage mounted
+            directory = getActivity().getFilesDir();
+        }
+        String name = "diagnostics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt";
+        File file = new File(directory, name);
+
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                writer.write(snapshot());
+            } finally {
+                writer.close();
+            }
+            Toast.makeText(getActivity(), getString(R.string.diagnostics_exported, file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not export the diagnostics : " + e);
+            Toast.makeText(getActivity(), R.string.diagnostics_export_failed, Toast.LENGTH_LONG).show();
+        }
+    }
+}
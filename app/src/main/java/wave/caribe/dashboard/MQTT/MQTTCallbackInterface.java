@@ -3,6 +3,8 @@ package wave.caribe.dashboard.MQTT;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import wave.caribe.dashboard.model.Measurement;
+
 /**
  * Caribe Wave Android App
  *
@@ -12,5 +14,9 @@ import org.json.JSONObject;
  */
 public interface MQTTCallbackInterface {
     void newMeasurement(String uid, JSONArray data);
+    // The measurement is reused by the caller, copy it to keep it after the call
+    void newMeasurement(String uid, Measurement measurement);
     void alert(JSONObject data);
+    // The recent events of the on-disk log are back, on the main thread
+    void replayed();
 }
@@ -7,46 +7,248 @@ package wave.caribe.dashboard.MQTT;
  *
  * Created by tchap on 14/03/16.
  */
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.util.Log;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.UUID;
 
-import wave.caribe.dashboard.MainActivity;
+import wave.caribe.dashboard.metrics.Counter;
+import wave.caribe.dashboard.metrics.Gauge;
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Measurement;
 
 public class MQTTClient implements MqttCallback {
 
-    private static final int TEMP_DIR_ATTEMPTS = 10000;
     private static final String TAG = "CW:MQTT BROKER";
 
-    private MqttClient mClient;
+    private static final String SESSION_DIR = "mqtt";
+    private static final String PREF_CLIENT_ID = "mqtt_client_id";
+    private static final String PREF_LEGACY_PURGED = "mqtt_legacy_tmp_purged";
+
+    private static final long RECONNECT_BASE_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 60000;
+
+    private static final int CONNECTION_TIMEOUT_S = 30;
+    // Bounds how long a dead connection goes unnoticed when we missed the network change
+    private static final int KEEP_ALIVE_S = 60;
+    private static final long DISCONNECT_TIMEOUT_MS = 5000;
+
+    // Other message metrics are kept by the MessageDispatcher
+    private static final Histogram sAlertDecode = MetricsRegistry.getDefault().histogram("mqtt.decode.alert");
+    private static final Counter sConnectAttempts = MetricsRegistry.getDefault().counter("mqtt.connect.attempts");
+    private static final Counter sConnections = MetricsRegistry.getDefault().counter("mqtt.connect.successes");
+    private static final Counter sConnectionsLost = MetricsRegistry.getDefault().counter("mqtt.connect.lost");
+
+    private volatile MqttAsyncClient mClient;
     private MqttConnectOptions connOpt;
-    private MQTTCallbackInterface mCallbackInterface;
+    private volatile MQTTCallbackInterface mCallbackInterface;
+    private volatile ConnectionListener mConnectionListener;
+
+    // Routes and decodes on the Paho callback thread, routes are rebuilt
+    // from the preferences every time we reconnect
+    private final MessageDispatcher mDispatcher = new MessageDispatcher(new MessageDispatcher.Sink() {
+        @Override
+        public void onMeasurement(String uid, Measurement measurement) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "New Measurement for " + uid + " : " + measurement.getCount() + " sample(s)");
+            }
+            mCallbackInterface.newMeasurement(uid, measurement);
+        }
+
+        @Override
+        public void onAlert(String topic, byte[] payload) {
+            long start = System.nanoTime();
+            String alert = new String(payload);
+            JSONObject json;
+            try {
+                json = new JSONObject(alert);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            sAlertDecode.recordSince(start);
+            Log.i(TAG, "General Alert : " + alert);
+            mCallbackInterface.alert(json);
+        }
+
+        @Override
+        public void onRejected(String topic, String reason) {
+            Log.w(TAG, reason + " (" + topic + ")");
+        }
+    });
 
     private final SharedPreferences sharedPref;
 
     // Used to generate a unique ID for the MQTT connection
     private final String android_id;
+    // Must stay the same across launches for the broker to resume our session
+    private final String mClientId;
+
+    private final Context mContext;
+    private File mSessionDir;
 
-    public MQTTClient(MainActivity activity) {
-        sharedPref = PreferenceManager.getDefaultSharedPreferences(activity);
+    private final ConnectivityManager mConnectivityManager;
+
+    // Every connection change goes through the state machine thread
+    private final ConnectionStateMachine mStateMachine = new ConnectionStateMachine(new ConnectionStateMachine.Driver() {
+        @Override
+        public void connect(int attempt) {
+            MQTTClient.this.connect(attempt);
+        }
+
+        @Override
+        public void disconnect() {
+            closeConnection();
+        }
+
+        @Override
+        public void release() {
+            releaseClient();
+        }
+    }, new Backoff(RECONNECT_BASE_DELAY_MS, RECONNECT_MAX_DELAY_MS));
+
+    private final ConnectionStateMachine.StateListener mStateLogger = new ConnectionStateMachine.StateListener() {
+        @Override
+        public void onStateChanged(ConnectionStateMachine.State from, ConnectionStateMachine.State to, Throwable cause) {
+            Log.i(TAG, "Connection state : " + from + " -> " + to + (cause != null ? " (" + cause + ")" : ""));
+            if (to == ConnectionStateMachine.State.CONNECTING) {
+                sConnectAttempts.inc();
+            } else if (to == ConnectionStateMachine.State.CONNECTED) {
+                sConnections.inc();
+            }
+
+            ConnectionListener listener = mConnectionListener;
+            if (listener == null) {
+                return;
+            }
+            switch (to) {
+                case CONNECTING:
+                    listener.onConnecting();
+                    break;
+                case CONNECTED:
+                    listener.onConnected();
+                    break;
+                case BACKING_OFF:
+                case DISCONNECTED:
+                    listener.onDisconnected(cause);
+                    break;
+            }
+        }
+    };
+
+    // Every network that reaches the internet, and the one we expect the connection
+    // to go through : the default one when ours is lost, or the first one reported
+    // while we had none. Only touched from the ConnectivityManager callback thread
+    private final LinkedHashSet<Network> mNetworks = new LinkedHashSet<>();
+    private Network mNetwork;
+
+    // Skip the backoff as soon as a network comes back, and don't wait for the
+    // keepalive to notice that the network of the connection is gone
+    private final ConnectivityManager.NetworkCallback mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            mNetworks.add(network);
+            if (mNetwork != null) {
+                // Another network on top of ours, e.g. cellular while on WiFi
+                return;
+            }
+            mNetwork = network;
+            if (mStateMachine.getState() == ConnectionStateMachine.State.BACKING_OFF) {
+                Log.i(TAG, "Network available, reconnecting now");
+            }
+            mStateMachine.onNetworkAvailable();
+        }
+
+        @Override
+        public void onLost(Network network) {
+            mNetworks.remove(network);
+            if (!network.equals(mNetwork)) {
+                return;
+            }
+            // The reconnection goes through the next one, keep an eye on it as well
+            mNetwork = defaultNetwork();
+            Log.i(TAG, "Network of the connection lost, reconnecting now");
+            mStateMachine.onNetworkChanged();
+        }
+    };
+
+    // The default network if we know it, else any network left, null if none
+    private Network defaultNetwork() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Network active = mConnectivityManager.getActiveNetwork();
+            if (mNetworks.contains(active)) {
+                return active;
+            }
+        } else {
+            NetworkInfo active = mConnectivityManager.getActiveNetworkInfo();
+            for (Network network : mNetworks) {
+                NetworkInfo info = mConnectivityManager.getNetworkInfo(network);
+                if (active != null && info != null && info.getType() == active.getType()) {
+                    return network;
+                }
+            }
+        }
+        // The system may not have switched to another one yet
+        return mNetworks.isEmpty() ? null : mNetworks.iterator().next();
+    }
+
+    private final Gauge mCollapsedRequests = new Gauge() {
+        @Override
+        public long get() {
+            return mStateMachine.getCollapsedRequestCount();
+        }
+    };
+
+    private final Gauge mRecoveryTime = new Gauge() {
+        @Override
+        public long get() {
+            return mStateMachine.getLastRecoveryTimeMs();
+        }
+    };
+
+    public MQTTClient(Context context) {
+        sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
 
         // Create the unique ID
-        android_id = "android_" + Settings.Secure.getString(activity.getContentResolver(),
-                Settings.Secure.ANDROID_ID);
+        String id = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+        android_id = "android_" + id;
+        mClientId = loadClientId(id != null);
+
+        mContext = context.getApplicationContext();
+
+        mStateMachine.addStateListener(mStateLogger);
+        MetricsRegistry.getDefault().gauge("mqtt.connect.collapsed", mCollapsedRequests);
+        MetricsRegistry.getDefault().gauge("mqtt.recovery.ms", mRecoveryTime);
+
+        mConnectivityManager = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), mNetworkCallback);
     }
 
     /**
@@ -58,21 +260,10 @@ public class MQTTClient implements MqttCallback {
     @Override
     public void connectionLost(Throwable t) {
         Log.i(TAG, "Connection LOST, reconnecting : " + t);
+        sConnectionsLost.inc();
 
-            System.out.println("msg "+t.getMessage());
-            System.out.println("loc "+t.getLocalizedMessage());
-            System.out.println("cause "+t.getCause());
-            System.out.println("excep "+t);
-            t.printStackTrace();
-
-        // Wait 5 secs before reconnecting
-        try {
-            Thread.sleep(5000);
-            connect();
-            subscribeToAll(mCallbackInterface);
-        } catch (Exception i) {
-            i.printStackTrace();
-        }
+        // Never block the Paho thread, the state machine backs off on its own thread
+        mStateMachine.onConnectionLost(t);
     }
 
     /**
@@ -96,110 +287,255 @@ public class MQTTClient implements MqttCallback {
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
         if(mCallbackInterface != null) {
-            if (topic.equals("alert/general")) {
-                Log.i(TAG, "General Alert : " + new String(message.getPayload()));
-                mCallbackInterface.alert(new JSONObject(new String(message.getPayload())));
-            } else if (topic.startsWith("measurement/")) {
-                StringTokenizer tokens = new StringTokenizer(topic, "/");
-                tokens.nextElement(); // skip first element
-                String uid = tokens.nextElement().toString();
-                Log.i(TAG, "New Measurement for " + uid + " : " + new String(message.getPayload()));
-                mCallbackInterface.newMeasurement(uid, new JSONArray(new String(message.getPayload())));
-            }
+            mDispatcher.dispatch(topic, message.getPayload());
+        }
+    }
+
+    private String loadClientId(boolean hasAndroidId) {
+        String clientId = sharedPref.getString(PREF_CLIENT_ID, null);
+        if (clientId == null) {
+            // Some devices have no ANDROID_ID, don't let them all share "android_null"
+            String prefix = hasAndroidId ? android_id : "android_" + UUID.randomUUID().toString().replace("-", "");
+            clientId = prefix + "_client";
+            sharedPref.edit().putString(PREF_CLIENT_ID, clientId).apply();
         }
+        return clientId;
     }
 
-    private void subscribeToAll(MQTTCallbackInterface ci){
+    /**
+     * Dispatch on the topics we subscribe to. This must be done before connecting,
+     * a persistent session delivers the messages we missed right after the connection.
+     */
+    private void buildRouter() {
+        String dataTopic = sharedPref.getString("pref_data", "");
+        String alertTopic = sharedPref.getString("pref_alert", "");
+
+        mDispatcher.setRoutes(dataTopic.length() > 1 ? dataTopic : null,
+                alertTopic.length() > 1 ? alertTopic : null);
+    }
+
+    /**
+     * Subscribes to every topic in a single round-trip.
+     */
+    private void subscribeToAll(MqttAsyncClient client, final int attempt){
 
         // setup topic
         int subQoS = 1;
+        String dataTopic = sharedPref.getString("pref_data", "");
+        String alertTopic = sharedPref.getString("pref_alert", "");
+
+        ArrayList<String> topics = new ArrayList<>(2);
+        if (dataTopic.length() > 1) {
+            topics.add(dataTopic);
+        }
+        if (alertTopic.length() > 1) {
+            topics.add(alertTopic);
+        }
+        if (topics.isEmpty()) {
+            onSubscribed(attempt);
+            return;
+        }
+
+        int[] qos = new int[topics.size()];
+        Arrays.fill(qos, subQoS);
+        Log.i(TAG, "Subscribing to " + topics);
 
         try {
-            if (sharedPref.getString("pref_data", "").length() > 1) {
-                Log.i(TAG, "Subscribing to " + sharedPref.getString("pref_data", ""));
-                mClient.subscribe(sharedPref.getString("pref_data", ""), subQoS);
-            }
-            if (sharedPref.getString("pref_alert", "").length() > 1) {
-                Log.i(TAG, "Subscribing to " + sharedPref.getString("pref_alert", ""));
-                mClient.subscribe(sharedPref.getString("pref_alert", ""), subQoS);
-            }
-            mCallbackInterface = ci;
+            client.subscribe(topics.toArray(new String[topics.size()]), qos, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    onSubscribed(attempt);
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    onFailed(attempt, e);
+                }
+            });
         } catch(MqttException me) {
-            // Display full details of any exception that occurs
-            System.out.println("reason "+me.getReasonCode());
-            System.out.println("msg "+me.getMessage());
-            System.out.println("loc "+me.getLocalizedMessage());
-            System.out.println("cause "+me.getCause());
-            System.out.println("excep "+me);
-            me.printStackTrace();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static File createTempDir() {
-        File baseDir = new File(System.getProperty("java.io.tmpdir"));
-        String baseName = System.currentTimeMillis() + "-";
-
-        for (int counter = 0; counter < TEMP_DIR_ATTEMPTS; counter++) {
-            File tempDir = new File(baseDir, baseName + counter);
-            if (tempDir.mkdir()) {
-                return tempDir;
+            onFailed(attempt, me);
+        }
+    }
+
+    private void onSubscribed(int attempt) {
+        Log.i(TAG, "Connected to " + sharedPref.getString("pref_url", ""));
+        mStateMachine.onConnected(attempt);
+    }
+
+    private void onFailed(int attempt, Throwable e) {
+        Log.i(TAG, "Impossible to connect to the broker. Please check the settings and that you have an available internet connection : " + e);
+        mStateMachine.onConnectFailed(attempt, e);
+    }
+
+    /**
+     * The single app-private directory holding the MQTT session,
+     * the first call also cleans up what older versions left behind.
+     */
+    private File sessionDirectory() {
+        if (mSessionDir == null) {
+            mSessionDir = mContext.getDir(SESSION_DIR, Context.MODE_PRIVATE);
+
+            if (!sharedPref.getBoolean(PREF_LEGACY_PURGED, false)) {
+                int removed = SessionPersistence.purgeLegacyTempDirs(new File(System.getProperty("java.io.tmpdir")));
+                Log.i(TAG, "Removed " + removed + " legacy persistence dir(s)");
+                sharedPref.edit().putBoolean(PREF_LEGACY_PURGED, true).apply();
             }
         }
-        throw new IllegalStateException("Failed to create directory within "
-                + TEMP_DIR_ATTEMPTS + " attempts (tried "
-                + baseName + "0 to " + baseName + (TEMP_DIR_ATTEMPTS - 1) + ')');
+        return mSessionDir;
     }
 
     /**
-     *
-     *
+     * Connects then subscribes without blocking, the outcome of the attempt
+     * is reported to the state machine once subscribed or on the first failure.
+     * Called on the state machine thread.
      */
-    private void connect() throws MqttException {
+    private void connect(final int attempt) {
         connOpt = new MqttConnectOptions();
 
-        connOpt.setCleanSession(true);
-        connOpt.setKeepAliveInterval(3600);
-        connOpt.setConnectionTimeout(3600);
+        // With a persistent session the broker keeps our subscriptions and
+        // queues QoS 1 messages while we are away
+        connOpt.setCleanSession(!sharedPref.getBoolean("pref_persistent_session", true));
+        connOpt.setKeepAliveInterval(KEEP_ALIVE_S);
+        connOpt.setConnectionTimeout(CONNECTION_TIMEOUT_S);
         connOpt.setUserName(sharedPref.getString("pref_username", ""));
         connOpt.setPassword(sharedPref.getString("pref_password", "").toCharArray());
 
-        String tmpDir = createTempDir().getPath(); //System.getProperty("java.io.tmpdir");
-        Log.i(TAG, "Persistence will be done in " + tmpDir);
-
-        MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(tmpDir);
+        final MqttAsyncClient client;
+        try {
+            client = prepareClient();
+            if (client.isConnected()) {
+                subscribeToAll(client, attempt);
+                return;
+            }
+            client.connect(connOpt, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    subscribeToAll(client, attempt);
+                }
 
-        // Connect to Broker
-        mClient = new MqttClient(sharedPref.getString("pref_url", "") + ":" + sharedPref.getString("pref_port", "1883"), android_id + "_client", dataStore);
-        mClient.setCallback(this);
-        mClient.connect(connOpt);
-        Log.i(TAG, "Connected to " + sharedPref.getString("pref_url", ""));
+                @Override
+                public void onFailure(IMqttToken token, Throwable e) {
+                    onFailed(attempt, e);
+                }
+            });
+        } catch (MqttException e) {
+            onFailed(attempt, e);
+        }
+    }
 
+    /**
+     * Called on the state machine thread.
+     */
+    private void closeConnection() {
+        MqttAsyncClient client = mClient;
+        if (client != null && client.isConnected()) {
+            try {
+                client.disconnect().waitForCompletion(DISCONNECT_TIMEOUT_MS);
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    public void reconnect(MQTTCallbackInterface ci) {
-        try {
-            //disconnect();
-            connect();
-            subscribeToAll(ci);
-        } catch (MqttException e) {
-            Log.i(TAG, "Impossible to connect to the broker. Please check the settings and that you have an available internet connection, and retry.");
-            e.printStackTrace();
-        } catch (Exception e) {
-            Log.i(TAG, "Problem connecting. Please check the settings, and retry.");
-            e.printStackTrace();
+    /**
+     * Keeps the same client (and persistence) as long as the broker doesn't change.
+     */
+    private synchronized MqttAsyncClient prepareClient() throws MqttException {
+        String serverURI = sharedPref.getString("pref_url", "") + ":" + sharedPref.getString("pref_port", "1883");
+
+        if (mClient == null || !mClient.getServerURI().equals(serverURI)) {
+            releaseClient();
+
+            File sessionDir = sessionDirectory();
+            SessionPersistence.compact(sessionDir, mClientId, serverURI);
+            Log.i(TAG, "Persistence will be done in " + sessionDir.getPath());
+
+            MqttDefaultFilePersistence dataStore = new MqttDefaultFilePersistence(sessionDir.getPath());
+            mClient = new MqttAsyncClient(serverURI, mClientId, dataStore);
+            mClient.setCallback(this);
         }
+        return mClient;
     }
 
-    public void disconnect() {
+    private synchronized void releaseClient() {
         if (mClient != null) {
             try {
-                mClient.disconnect();
-            } catch (Exception e) {
+                if (mClient.isConnected()) {
+                    mClient.disconnect().waitForCompletion(DISCONNECT_TIMEOUT_MS);
+                }
+                mClient.close();
+            } catch (MqttException e) {
                 e.printStackTrace();
             }
+            mClient = null;
         }
     }
 
+    public void setConnectionListener(ConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
+    /**
+     * Connects to the broker unless we already are, and returns right away.
+     */
+    public void connect(MQTTCallbackInterface ci) {
+        mCallbackInterface = ci;
+        buildRouter();
+        mStateMachine.connect();
+    }
+
+    /**
+     * Connects to the broker again with the current settings, and returns right away.
+     */
+    public void reconnect(MQTTCallbackInterface ci) {
+        mCallbackInterface = ci;
+        buildRouter();
+        mStateMachine.reconnect();
+    }
+
+    public boolean isConnected() {
+        return mStateMachine.getState() == ConnectionStateMachine.State.CONNECTED;
+    }
+
+    /**
+     * @return true between connect() or reconnect() and disconnect(), even while we are waiting to reconnect
+     */
+    public boolean isConnectionWanted() {
+        return mStateMachine.isConnectionWanted();
+    }
+
+    public ConnectionStateMachine.State getConnectionState() {
+        return mStateMachine.getState();
+    }
+
+    public void addStateListener(ConnectionStateMachine.StateListener listener) {
+        mStateMachine.addStateListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.StateListener listener) {
+        mStateMachine.removeStateListener(listener);
+    }
+
+    /**
+     * @return the time between the last network restoration and the following
+     * resubscription in milliseconds, or -1 if we never had to wait for the network
+     */
+    public long getLastRecoveryTimeMs() {
+        return mStateMachine.getLastRecoveryTimeMs();
+    }
+
+    /**
+     * Releases the connection thread and the network callback, the client can't be used afterwards.
+     */
+    public void close() {
+        MetricsRegistry.getDefault().removeGauge("mqtt.connect.collapsed", mCollapsedRequests);
+        MetricsRegistry.getDefault().removeGauge("mqtt.recovery.ms", mRecoveryTime);
+        mStateMachine.shutdown();
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+    }
+
+    public void disconnect() {
+        mStateMachine.disconnect();
+    }
+
 }
\ No newline at end of file
@@ -2,18 +2,22 @@ package wave.caribe.dashboard;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.ColorStateList;
 import android.graphics.RectF;
-import android.graphics.drawable.Drawable;
 import android.location.Location;
 import android.location.LocationManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -40,38 +44,45 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import android.graphics.RectF;
 import com.mapbox.mapboxsdk.camera.CameraPosition;
 import com.mapbox.mapboxsdk.camera.CameraUpdateFactory;
 
-import com.mapbox.mapboxsdk.annotations.Icon;
-import com.mapbox.mapboxsdk.annotations.IconFactory;
-import com.mapbox.mapboxsdk.annotations.Marker;
-import com.mapbox.mapboxsdk.annotations.MarkerOptions;
 import com.mapbox.mapboxsdk.constants.MyBearingTracking;
 import com.mapbox.mapboxsdk.constants.MyLocationTracking;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.views.MapView;
 
+import wave.caribe.dashboard.MQTT.ConnectionListener;
+import wave.caribe.dashboard.MQTT.IngestionQueue;
 import wave.caribe.dashboard.MQTT.MQTTCallbackInterface;
-import wave.caribe.dashboard.MQTT.MQTTClient;
+import wave.caribe.dashboard.map.MarkerIconCache;
+import wave.caribe.dashboard.map.MarkerReconciler;
+import wave.caribe.dashboard.map.SensorRegistry;
+import wave.caribe.dashboard.metrics.Counter;
+import wave.caribe.dashboard.metrics.Gauge;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Measurement;
 import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
 import wave.caribe.dashboard.services.AsyncHttpTask;
+import wave.caribe.dashboard.services.HttpClient;
+import wave.caribe.dashboard.services.MQTTService;
 import wave.caribe.dashboard.services.RegistrationIntentService;
+import wave.caribe.dashboard.startup.StartupGraph;
+import wave.caribe.dashboard.startup.StartupTrace;
+import wave.caribe.dashboard.state.DashboardState;
+import wave.caribe.dashboard.state.DashboardStore;
+import wave.caribe.dashboard.storage.SensorCatalogueCache;
+import wave.caribe.dashboard.util.TimingWheel;
 
 
 /**
@@ -85,7 +96,8 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
     private static final String TAG = "CW:MAIN ACTIVITY";
 
-    private MQTTClient mMQTTClient;
+    // The MQTT connection lives in the service, we only listen to it while visible
+    private MQTTService mMQTTService;
     private GoogleApiClient mGoogleApiClient;
     private Location mCurrentLocation;
     private LocationRequest mLocationRequest;
@@ -98,26 +110,56 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     private LinearLayout msgbox;
     private FloatingActionButton mLocationButton;
 
-    // Timers for display
-    private Timer resetMarkerTimer = new Timer();
-    private Timer resetAlertTimer = new Timer();
-
-    private boolean alert_in_progress = false;
     private static final int WARNING_DISPLAY_TIME_IN_S = 5;
     private static final int ALERT_DISPLAY_TIME_IN_S = 120;
 
-    private final ArrayList<Sensor> sensors = new ArrayList<>();
-    private final ArrayList<Marker> listOfMarkers = new ArrayList<>();
+    // When the displayed states end : the message box, then each sensor by id.
+    // One wheel for all of them, ticked on the UI thread while something is pending
+    private static final int EXPIRY_TICK_MS = 250;
+    private static final int EXPIRY_SLOTS = 512;
+    private static final int EXPIRY_KEY_MESSAGE = 0;
+    private static final int EXPIRY_KEY_FIRST_SENSOR = 1;
+    private TimingWheel mExpiries = newExpiries(0);
+    private boolean mExpiryTicking = false;
+
+    // Measurements wait here until the map drains them, so that the MQTT
+    // callback thread never waits for rendering
+    private static final int INGESTION_CAPACITY = 256;
+    private static final int INGESTION_DRAIN_INTERVAL_MS = 100;
+    private static final int INGESTION_DRAIN_BATCH = 64;
+    private final IngestionQueue mIngestionQueue = new IngestionQueue(INGESTION_CAPACITY);
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private long mReportedDrops = 0;
+
+    // What the dashboard shows, readable from any thread
+    private final DashboardStore mStore = new DashboardStore(DashboardState.EMPTY);
+
+    // Markers of the current sensor list, following the store. UI thread only
+    private SensorRegistry mRegistry = new SensorRegistry(DashboardState.EMPTY);
+    private MarkerIconCache mIconCache;
+    private MarkerReconciler mMarkers;
+    // When the event behind the store update in progress reached the app, in
+    // System.nanoTime(), so that the markers time it until they are drawn. 0 if unknown
+    private long mUpdateSince = 0;
+
+    // Last sensor list received, to show the markers before the API answers
+    private static final String SENSOR_CACHE_FILE = "sensors.bin";
+    private SensorCatalogueCache mCatalogueCache;
 
     private static final int DEFAULT_ZOOM = 10;
     private final float default_lat = 15.9369587f; // Marie Galante
     private final float default_lon = -61.301064f;
     private final int LOCATION_INTERVAL = 2000;
 
-    private Date mLastActive;
-
     private SharedPreferences sharedPref;
 
+    // From the creation of the activity to the first marker
+    private final StartupTrace mStartupTrace = new StartupTrace();
+
+    // Sensors changed on the map
+    private static final Counter sSensorChanges = MetricsRegistry.getDefault().counter("map.sensor.changes");
+    private final Map<String, Gauge> mGauges = new HashMap<>();
+
     // GCM
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
     public static final String SENT_TOKEN_TO_SERVER = "sentTokenToServer";
@@ -163,10 +205,7 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Force values (we hide the preference screen for now)
-        PreferenceManager.setDefaultValues(this, R.xml.preferences, true);
-
-        sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+        mIconCache = new MarkerIconCache(this);
 
         // Request fine location (Android > 6.0)
         if (!isLocationPermissionGranted()) {
@@ -174,16 +213,6 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             askPermissionForLocation();
         }
 
-        // Check if we have Play Services for GCM
-        if (checkPlayServices()) {
-            Log.i(TAG, "Play Services are OK");
-            // Start IntentService to register this application with GCM.
-            Intent intent = new Intent(this, RegistrationIntentService.class);
-            startService(intent);
-        } else {
-            Log.i(TAG, "Play Services are NOT ok");
-        }
-
         msg = (TextView) findViewById(R.id.msg);
         msgbox = (LinearLayout) findViewById(R.id.msgbox);
         mLocationButton = (FloatingActionButton) findViewById(R.id.location);
@@ -204,14 +233,45 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
         mapView = (MapView) findViewById(R.id.map);
         mapView.setAccessToken(getString(R.string.mapbox_id));
+        mMarkers = new MarkerReconciler(mapView, mIconCache, getWindowManager().getDefaultDisplay().getRefreshRate());
+        mMarkers.setOnFirstMarker(new Runnable() {
+            @Override
+            public void run() {
+                markStartup("first marker");
+            }
+        });
+        mapView.addOnMapChangedListener(new MapView.OnMapChangedListener() {
+            @Override
+            public void onMapChanged(int change) {
+                // Clusters follow the zoom level
+                if (change == MapView.REGION_DID_CHANGE || change == MapView.REGION_DID_CHANGE_ANIMATED) {
+                    mMarkers.setZoom(mapView.getZoomLevel());
+                }
+            }
+        });
+        mStore.addListener(mStateListener);
+        registerGauges();
 
-        //Handling tasks dispatching across 3 threads
-        ExecutorService executorService = Executors.newFixedThreadPool(3);
-        Set<Callable<Boolean>> callables = new HashSet<>();
+        // Hidden way to the diagnostics
+        msgbox.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                getFragmentManager().beginTransaction()
+                        .replace(android.R.id.content, new DiagnosticsFragment())
+                        .addToBackStack("diagnostics")
+                        .commit();
+                return true;
+            }
+        });
 
-        callables.add(new Callable<Boolean>() {
-            public Boolean call() throws Exception {
+        // Nothing waits here : ready UI tasks run right away, the others when their
+        // dependencies are done
+        StartupGraph startup = new StartupGraph(mUiExecutor, AsyncTask.THREAD_POOL_EXECUTOR, AsyncTask.THREAD_POOL_EXECUTOR, mStartupTrace);
 
+        // No dependencies, so that it runs within onCreate as the MapView lifecycle requires
+        startup.add("map", StartupGraph.ThreadType.UI, new Runnable() {
+            @Override
+            public void run() {
                 // Instantiate map
                 Log.i(TAG, "Instantiating map");
 
@@ -259,44 +319,197 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
                 // Msg Box
                 msg.setText(R.string.no_event);
+            }
+        });
 
-                return true;
+        // Also within onCreate : onStart connects the MQTT service, which reads the default
+        // preferences on first launch, and the Retry menu needs sharedPref
+        startup.add("preferences", StartupGraph.ThreadType.UI, new Runnable() {
+            @Override
+            public void run() {
+                // Force values (we hide the preference screen for now)
+                PreferenceManager.setDefaultValues(MainActivity.this, R.xml.preferences, true);
 
+                sharedPref = PreferenceManager.getDefaultSharedPreferences(MainActivity.this);
+                mCatalogueCache = new SensorCatalogueCache(new File(getFilesDir(), SENSOR_CACHE_FILE));
             }
         });
 
-        callables.add(new Callable<Boolean>() {
-            public Boolean call() throws Exception {
+        startup.add("play services", StartupGraph.ThreadType.UI, new Runnable() {
+            @Override
+            public void run() {
+                // Check if we have Play Services for GCM
+                if (checkPlayServices()) {
+                    Log.i(TAG, "Play Services are OK");
+                    // Start IntentService to register this application with GCM.
+                    Intent intent = new Intent(MainActivity.this, RegistrationIntentService.class);
+                    startService(intent);
+                } else {
+                    Log.i(TAG, "Play Services are NOT ok");
+                }
+            }
+        }, "map");
+
+        // Cheap to build, and onStart connects the same client : kept on the UI thread, within onCreate
+        startup.add("location client", StartupGraph.ThreadType.UI, new Runnable() {
+            @Override
+            public void run() {
                 // Build the Google API client for location requests
                 Log.i(TAG, "Building Google API Client");
                 buildGoogleApiClient();
-                return true;
             }
         });
 
-        callables.add(new Callable<Boolean>() {
-            public Boolean call() throws Exception {
+        startup.add("sensor list", StartupGraph.ThreadType.UI, new Runnable() {
+            @Override
+            public void run() {
                 // Retrieve sensor list
                 Log.i(TAG, "Retrieving Sensor list");
                 getSensorList();
-                return true;
+            }
+        }, "map", "preferences");
+
+        startup.start(new StartupGraph.Listener() {
+            @Override
+            public void onFinished(StartupTrace trace) {
+                Log.i(TAG, "Startup tasks done\n" + trace.format());
             }
         });
 
-        try {
-            
-            executorService.invokeAll(callables);
-        } catch (Exception ignored) {}
-        finally {
-            executorService.shutdown();
+    }
+
+    // Runs on the UI thread, right away when already there
+    private final Executor mUiExecutor = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                mUiHandler.post(command);
+            }
         }
+    };
+
+    public StartupTrace getStartupTrace()
+    {
+        return mStartupTrace;
+    }
+
+    /**
+     * @return the MQTT service, null while not bound
+     */
+    public MQTTService getMQTTService()
+    {
+        return mMQTTService;
+    }
 
-        // Build the MQTT Client
-        Log.i(TAG, "Creating MQTT Client");
-        mMQTTClient = new MQTTClient(this);
+    private void registerGauges()
+    {
+        mGauges.put("map.markers.applied", new Gauge() {
+            @Override
+            public long get() {
+                return mMarkers.getScheduler().getAppliedChangeCount();
+            }
+        });
+        mGauges.put("map.markers.pending", new Gauge() {
+            @Override
+            public long get() {
+                return mMarkers.getScheduler().getPendingCount();
+            }
+        });
+        mGauges.put("map.frames.over.budget", new Gauge() {
+            @Override
+            public long get() {
+                return mMarkers.getScheduler().getDroppedFrameCount();
+            }
+        });
+        mGauges.put("ingestion.coalesced", new Gauge() {
+            @Override
+            public long get() {
+                return mIngestionQueue.getCoalescedCount();
+            }
+        });
+        mGauges.put("ingestion.dropped", new Gauge() {
+            @Override
+            public long get() {
+                return mIngestionQueue.getDroppedCount();
+            }
+        });
+        for (Map.Entry<String, Gauge> gauge : mGauges.entrySet()) {
+            MetricsRegistry.getDefault().gauge(gauge.getKey(), gauge.getValue());
+        }
+    }
 
+    private void markStartup(String milestone)
+    {
+        if (mStartupTrace.mark(milestone)) {
+            Log.i(TAG, "Startup : " + milestone + " after " + mStartupTrace.elapsedNs() / 1000000 + " ms");
+        }
     }
 
+    private final MQTTCallbackInterface mMQTTListener = new MQTTCallbackInterface() {
+        private final Measurement mJsonMeasurement = new Measurement();
+
+        public void newMeasurement(String uid, JSONArray measurement) {
+            mJsonMeasurement.reset(System.currentTimeMillis());
+            for (int i = 0; i < measurement.length(); i++) {
+                mJsonMeasurement.add(measurement.optDouble(i));
+            }
+            newMeasurement(uid, mJsonMeasurement);
+        }
+        public void newMeasurement(String uid, Measurement measurement) {
+            mIngestionQueue.offer(uid, measurement);
+        }
+        public void alert(final JSONObject alert) {
+            final long received = System.nanoTime();
+            // Alerts are rare and must not be coalesced, hand them over directly
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mUpdateSince = received;
+                    showAlert(alert);
+                    mUpdateSince = 0;
+                }
+            });
+        }
+        public void replayed() {
+            // The last alert may only be known now, after the sensors were shown
+            if (mStore.get().size() > 0) {
+                restoreRecentAlert();
+            }
+        }
+    };
+
+    private final ConnectionListener mConnectionListener = new ConnectionListener() {
+        public void onConnecting() {
+            Log.i(TAG, "MQTT connecting");
+        }
+        public void onConnected() {
+            Log.i(TAG, "MQTT connected and subscribed");
+        }
+        public void onDisconnected(Throwable cause) {
+            Log.i(TAG, "MQTT disconnected" + (cause != null ? " : " + cause : ""));
+        }
+    };
+
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            Log.i(TAG, "Bound to the MQTT service");
+            mMQTTService = ((MQTTService.LocalBinder) binder).getService();
+            mMQTTService.addListener(mMQTTListener);
+            mMQTTService.addConnectionListener(mConnectionListener);
+            if (mStore.get().size() > 0) {
+                restoreRecentAlert();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mMQTTService = null;
+        }
+    };
+
     private void getSensorList()
     {
 
@@ -305,35 +518,21 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
         if (api_url.equals("")) {
             Log.i(TAG, "Bad sensor list URL");
         } else {
-            AsyncHttpTask task = new AsyncHttpTask(new AsyncHttpTask.TaskListener() {
+            AsyncHttpTask task = new AsyncHttpTask(HttpClient.getInstance(this), mCatalogueCache, new AsyncHttpTask.TaskListener() {
                 @Override
-                public void onFinished(JSONArray result) {
-                    // Translate to sensor ArrayList
-                    Sensor current;
-                    ArrayList<LatLng> coordinates = new ArrayList<>();
-
-                    for (int i = 0; i < result.length(); i++) {
-                        try {
-
-                            JSONObject place = result.getJSONObject(i);
-                            JSONArray sensor_uids = place.getJSONArray("sensor_uids");
-                            LatLng c = new LatLng(Double.parseDouble(place.getString("lat")), Double.parseDouble(place.getString("lon")));
-
-                            if (sensor_uids.length() > 0 && !sensor_uids.get(0).toString().equals("null")) {
-                                current = new Sensor(sensor_uids.get(0).toString(), place.getString("name"), c);
-                            } else {
-                                current = new Sensor(null,place.getString("name"), c);
-                            }
-                            coordinates.add(c);
-                            sensors.add(current);
-
-                        } catch(JSONException ignored) {}
-                    }
+                public void onCached(SensorCatalogue result) {
+                    Log.i(TAG, "Showing " + result.size() + " cached sensors");
+                    showSensors(result);
+                }
 
-                    LatLng[] arr = coordinates.toArray(new LatLng[coordinates.size()]);
-                    mapView.setVisibleCoordinateBounds(arr, new RectF(100, 100, 100, 100), true);
+                @Override
+                public void onFinished(SensorCatalogue result) {
+                    showSensors(result);
+                }
 
-                    resetStillMarkers();
+                @Override
+                public void onNotModified() {
+                    Log.i(TAG, "Cached sensor list is up to date");
                 }
             });
             task.execute(api_url);
@@ -341,6 +540,28 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
 
     }
 
+    private void showSensors(final SensorCatalogue catalogue)
+    {
+        mExpiries = newExpiries(catalogue.size());
+        mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setCatalogue(catalogue);
+            }
+        });
+
+        if (!catalogue.isEmpty()) {
+            LatLng[] bounds = {
+                    new LatLng(catalogue.getSouth(), catalogue.getWest()),
+                    new LatLng(catalogue.getNorth(), catalogue.getEast())
+            };
+            mapView.setVisibleCoordinateBounds(bounds, new RectF(100, 100, 100, 100), true);
+        }
+
+        resetStillMarkers();
+        restoreRecentAlert();
+    }
+
     private void resetStillMarkers()
     {
 
@@ -350,33 +571,118 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             @SuppressLint("PrivateResource")
             @Override
             public void run() {
-                mapView.removeAllAnnotations();
-                listOfMarkers.clear();
-                msg.setText(R.string.no_event);
-                msg.setTextColor(getResources().getColor(R.color.black));
-                msgbox.setBackgroundColor(getResources().getColor(R.color.safe));
+                // Everything is back to rest, nothing left to expire
+                mExpiries.cancelAll();
+                mStore.update(new DashboardStore.Update() {
+                    @Override
+                    public void apply(DashboardState.Builder state) {
+                        state.clearAlert();
+                        state.resetStates();
+                    }
+                });
+                resetMessage();
             }
         });
-        
-        IconFactory mIconFactory = IconFactory.getInstance(this);
-        Drawable mIconDrawableDisabled = ContextCompat.getDrawable(this, R.drawable.map_grey);
-        Icon disabled_icon = mIconFactory.fromDrawable(mIconDrawableDisabled);
 
-        Drawable mIconDrawableActive = ContextCompat.getDrawable(this, R.drawable.map_green);
-        Icon active_icon = mIconFactory.fromDrawable(mIconDrawableActive);
+    }
 
-        for (int i = 0; i < sensors.size(); i++)
-        {
-            listOfMarkers.add(
-                mapView.addMarker(new MarkerOptions()
-                        .position(sensors.get(i).getLatLng())
-                        .title(sensors.get(i).getName())
-                        .icon(sensors.get(i).hasUid() ? active_icon : disabled_icon)
-                        .snippet(sensors.get(i).getUid())));
+    private final DashboardStore.Listener mStateListener = new DashboardStore.Listener() {
+        @Override
+        public void onStateChanged(DashboardState previous, DashboardState current) {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                mUiHandler.post(mSyncMarkers);
+            } else if (current.getCatalogue() != mRegistry.getCatalogue()) {
+                syncMarkers(current);
+            } else {
+                // Only the markers of the sensors that changed are touched
+                sSensorChanges.add(current.getChangeCount());
+                for (int i = 0; i < current.getChangeCount(); i++) {
+                    int id = current.getChangedId(i);
+                    mMarkers.setState(id, current.getState(id), mUpdateSince);
+                }
+            }
         }
+    };
 
+    private final Runnable mSyncMarkers = new Runnable() {
+        @Override
+        public void run() {
+            syncMarkers(mStore.get());
+        }
+    };
+
+    private void syncMarkers(DashboardState state)
+    {
+        if (state.getCatalogue() != mRegistry.getCatalogue()) {
+            mRegistry = new SensorRegistry(state);
+            mMarkers.setRegistry(mRegistry);
+            return;
+        }
+        for (int id = 0; id < state.size(); id++) {
+            mMarkers.setState(id, state.getState(id));
+        }
     }
 
+    @SuppressLint("PrivateResource")
+    private void resetMessage()
+    {
+        msg.setText(R.string.no_event);
+        msg.setTextColor(getResources().getColor(R.color.black));
+        msgbox.setBackgroundColor(getResources().getColor(R.color.safe));
+    }
+
+    private TimingWheel newExpiries(int sensorCount)
+    {
+        return new TimingWheel(EXPIRY_KEY_FIRST_SENSOR + sensorCount, EXPIRY_TICK_MS, EXPIRY_SLOTS, SystemClock.uptimeMillis());
+    }
+
+    private void scheduleExpiry(int key, long delayMs)
+    {
+        mExpiries.schedule(key, delayMs, SystemClock.uptimeMillis());
+        if (!mExpiryTicking) {
+            mExpiryTicking = true;
+            mUiHandler.postDelayed(mExpiryTick, EXPIRY_TICK_MS);
+        }
+    }
+
+    private final TimingWheel.Listener mExpiryListener = new TimingWheel.Listener() {
+        @Override
+        public void onExpired(int key) {
+            if (key == EXPIRY_KEY_MESSAGE) {
+                // End of the last warning, or of the alert
+                mStore.update(mClearAlert);
+                resetMessage();
+            } else {
+                final int id = key - EXPIRY_KEY_FIRST_SENSOR;
+                mStore.update(new DashboardStore.Update() {
+                    @Override
+                    public void apply(DashboardState.Builder state) {
+                        state.setState(id, state.restingState(id));
+                    }
+                });
+            }
+        }
+    };
+
+    private final DashboardStore.Update mClearAlert = new DashboardStore.Update() {
+        @Override
+        public void apply(DashboardState.Builder state) {
+            state.clearAlert();
+        }
+    };
+
+    private final Runnable mExpiryTick = new Runnable() {
+        @Override
+        public void run() {
+            mExpiries.advance(SystemClock.uptimeMillis(), mExpiryListener);
+            if (mExpiries.isEmpty()) {
+                mExpiryTicking = false;
+            } else {
+                mUiHandler.postDelayed(this, EXPIRY_TICK_MS);
+            }
+        }
+    };
+
     private synchronized void buildGoogleApiClient()
     {
         mGoogleApiClient = new GoogleApiClient.Builder(this)
@@ -431,63 +737,71 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
         // back to normal before reconnecting
         resetStillMarkers();
 
-        HandlerThread handlerThread = new HandlerThread("MQTTHandler");
-        handlerThread.start();
-        Handler handler = new Handler(handlerThread.getLooper());
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                Log.i(TAG, "Connecting MQTT Client");
-                mMQTTClient.reconnect(new MQTTCallbackInterface() {
-                    public void newMeasurement(String uid, JSONArray measurement) {
-                        updateMap(uid, measurement);
-                    }
-                    public void alert(JSONObject alert) {
-                        showAlert(alert);
-                    }
-                });
-            }
-        };
-
-        handler.post(r);
+        // Only queues a request on the connection thread, where concurrent
+        // requests are collapsed
+        if (mMQTTService != null) {
+            Log.i(TAG, "Reconnecting MQTT Client");
+            mMQTTService.reconnect();
+        }
 
     }
 
-    private void updateMap(String uid, JSONArray measurement)
-    {
-        if (alert_in_progress) {
-            // We don't want to interfere with a general alert
-            return;
+    private final IngestionQueue.Consumer mMeasurementConsumer = new IngestionQueue.Consumer() {
+        @Override
+        public void accept(String uid, Measurement measurement) {
+            updateMap(uid, measurement);
         }
+    };
 
-        // A new event is coming
-        resetMarkerTimer.cancel();
-
-        updateLastActive();
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mIngestionQueue.drain(mMeasurementConsumer, INGESTION_DRAIN_BATCH);
 
-        final ArrayList<String> places = new ArrayList<>();
-
-        IconFactory mIconFactory = IconFactory.getInstance(this);
-        Drawable mIconDrawableDanger = ContextCompat.getDrawable(this, R.drawable.map_yellow);
-        Icon warning_icon = mIconFactory.fromDrawable(mIconDrawableDanger);
+            long dropped = mIngestionQueue.getDroppedCount();
+            if (dropped != mReportedDrops) {
+                Log.w(TAG, "Ingestion queue overflow, " + (dropped - mReportedDrops) + " measurement(s) dropped");
+                mReportedDrops = dropped;
+            }
 
-        for (final Marker marker : listOfMarkers) {
-            if (marker.getSnippet().equals(uid)) {
-                places.add(marker.getTitle());
-                marker.setIcon(warning_icon);
+            mUiHandler.postDelayed(this, INGESTION_DRAIN_INTERVAL_MS);
+        }
+    };
 
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mapView.removeMarker(marker);
-                        mapView.addMarker(new MarkerOptions()
-                                .position(marker.getPosition())
-                                .title(marker.getTitle())
-                                .icon(marker.getIcon())
-                                .snippet(marker.getSnippet()));
+    private void updateMap(final String uid, Measurement measurement)
+    {
+        final long now = System.currentTimeMillis();
+        // Timed from the measurement itself, until its marker is drawn
+        mUpdateSince = System.nanoTime() - (now - measurement.getTimestamp()) * 1000000;
+        DashboardState state = mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setLastMeasurementTime(now);
+                if (state.isAlertInProgress()) {
+                    // We don't want to interfere with a general alert
+                    return;
+                }
+                SensorCatalogue catalogue = state.getCatalogue();
+                for (int id = catalogue.indexOf(uid); id >= 0; id = catalogue.nextIndexOf(id)) {
+                    if (state.getState(id) != DashboardState.STATE_ALERT) {
+                        state.setState(id, DashboardState.STATE_WARNING);
                     }
-                });
+                }
+            }
+        });
+        mUpdateSince = 0;
+        if (state.isAlertInProgress()) {
+            return;
+        }
 
+        final ArrayList<String> places = new ArrayList<>();
+
+        // Each sensor warns for its own time, other warnings keep going
+        SensorCatalogue catalogue = state.getCatalogue();
+        for (int id = catalogue.indexOf(uid); id >= 0; id = catalogue.nextIndexOf(id)) {
+            if (state.getState(id) == DashboardState.STATE_WARNING) {
+                places.add(catalogue.getSensors().get(id).getName());
+                scheduleExpiry(EXPIRY_KEY_FIRST_SENSOR + id, WARNING_DISPLAY_TIME_IN_S*1000);
             }
         }
 
@@ -500,30 +814,39 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             }
         });
 
-        // Run for 2 seconds
-        resetMarkerTimer = new Timer();
-        resetMarkerTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (!alert_in_progress) {
-                    resetStillMarkers();
-                }
-                resetMarkerTimer.cancel();
-            }
-        }, WARNING_DISPLAY_TIME_IN_S*1000);
+        // Until the last warning ends
+        scheduleExpiry(EXPIRY_KEY_MESSAGE, WARNING_DISPLAY_TIME_IN_S*1000);
 
     }
 
+    /*
+    * Shows again an alert that is still running, e.g. received before the process was restarted
+    * */
+    private void restoreRecentAlert()
+    {
+        // Until the log is replayed the last alert may be an older one, replayed() comes back here
+        if (mMQTTService == null || !mMQTTService.isReplayed() || mStore.get().isAlertInProgress()) {
+            return;
+        }
+        long displayTime = ALERT_DISPLAY_TIME_IN_S*1000;
+        JSONObject alert = mMQTTService.getRecentAlert(displayTime);
+        if (alert != null) {
+            Log.i(TAG, "Restoring a recent alert");
+            showAlert(alert, displayTime - (System.currentTimeMillis() - mMQTTService.getRecentAlertTime()));
+        }
+    }
+
     private void showAlert(JSONObject alert)
     {
-        // A new event is coming
-        resetMarkerTimer.cancel();
-        alert_in_progress = true;
+        showAlert(alert, ALERT_DISPLAY_TIME_IN_S*1000);
+    }
 
+    private void showAlert(JSONObject alert, long displayTime)
+    {
         String tmp;
-        JSONArray sensor_uids;
-        List<String> uids_list = new ArrayList<>();
-        updateLastActive();
+        // When the alert was received
+        final long time = System.currentTimeMillis() + displayTime - ALERT_DISPLAY_TIME_IN_S*1000;
+        displayTime = Math.max(0, displayTime);
 
         try {
             tmp = alert.get("message").toString();
@@ -531,35 +854,28 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             tmp = getString(R.string.general_alert);
         }
 
-        try {
-            sensor_uids = (JSONArray) alert.get("sensors_uids");
-            //noinspection StatementWithEmptyBody
-            for (int i = 0; i < sensor_uids.length();uids_list.add(sensor_uids.get(i++).toString()));
-        } catch(Exception ignored) {
-        }
-
-        IconFactory mIconFactory = IconFactory.getInstance(this);
-        Drawable mIconDrawableDanger = ContextCompat.getDrawable(this, R.drawable.map_red);
-        Icon danger_icon = mIconFactory.fromDrawable(mIconDrawableDanger);
+        final String message = tmp;
+        final JSONArray sensor_uids = alert.optJSONArray("sensors_uids");
+        DashboardState state = mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setAlert(message, time);
+                SensorCatalogue catalogue = state.getCatalogue();
+                for (int i = 0; sensor_uids != null && i < sensor_uids.length(); i++) {
+                    for (int id = catalogue.indexOf(sensor_uids.optString(i)); id >= 0; id = catalogue.nextIndexOf(id)) {
+                        state.setState(id, DashboardState.STATE_ALERT);
+                    }
+                }
+            }
+        });
 
-        for (final Marker marker : listOfMarkers) {
-            if (uids_list.contains(marker.getSnippet())) {
-                marker.setIcon(danger_icon);
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        mapView.removeMarker(marker);
-                        mapView.addMarker(new MarkerOptions()
-                                .position(marker.getPosition())
-                                .title(marker.getTitle())
-                                .icon(marker.getIcon())
-                                .snippet(marker.getSnippet()));
-                            }
-                });
+        SensorCatalogue catalogue = state.getCatalogue();
+        for (int i = 0; sensor_uids != null && i < sensor_uids.length(); i++) {
+            for (int id = catalogue.indexOf(sensor_uids.optString(i)); id >= 0; id = catalogue.nextIndexOf(id)) {
+                scheduleExpiry(EXPIRY_KEY_FIRST_SENSOR + id, displayTime);
             }
         }
 
-        final String message = tmp;
         // Update msg box with alert
         runOnUiThread(new Runnable() {
             @SuppressLint("PrivateResource")
@@ -571,22 +887,7 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
             }
         });
 
-        // Run for 2 seconds
-        resetAlertTimer = new Timer();
-        resetAlertTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                resetStillMarkers();
-                resetAlertTimer.cancel();
-                alert_in_progress = false;
-            }
-        }, ALERT_DISPLAY_TIME_IN_S*1000);
-    }
-
-    private void updateLastActive()
-    {
-        mLastActive = new Date();
-        //Log.i(TAG, "Data received at " + mLastActive.toString());
+        scheduleExpiry(EXPIRY_KEY_MESSAGE, displayTime);
     }
 
     /*
@@ -608,7 +909,7 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     {
         super.onResume();
         mapView.onResume();
-        reconnect(); // Reconnect MQTT
+        mUiHandler.post(mDrainRunnable);
         // Within {@code onPause()}, we pause location updates, but leave the
         // connection to GoogleApiClient intact.
         startLocationUpdates();
@@ -620,15 +921,9 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     {
         super.onPause();
         mapView.onPause();
+        mUiHandler.removeCallbacks(mDrainRunnable);
         // Stop location updates to save battery, but don't disconnect the GoogleApiClient object.
         stopLocationUpdates();
-        if (mMQTTClient != null) {
-            try {
-                mMQTTClient.disconnect();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
     }
 
     @Override
@@ -636,6 +931,13 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     {
         super.onStop();
         mapView.onStop();
+        // The service keeps the connection for a while, in case we come back soon
+        if (mMQTTService != null) {
+            mMQTTService.removeListener(mMQTTListener);
+            mMQTTService.removeConnectionListener(mConnectionListener);
+            mMQTTService = null;
+        }
+        unbindService(mServiceConnection);
         if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
             mGoogleApiClient.disconnect();
         }
@@ -647,6 +949,10 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     {
         super.onStart();
         mapView.onStart();
+        // Binding (re)connects MQTT if needed
+        Intent mqtt = new Intent(this, MQTTService.class);
+        startService(mqtt);
+        bindService(mqtt, mServiceConnection, Context.BIND_AUTO_CREATE);
         if (mGoogleApiClient != null && !mGoogleApiClient.isConnected() && !mGoogleApiClient.isConnecting()) {
             mGoogleApiClient.connect();
         }
@@ -656,6 +962,12 @@ public class MainActivity extends AppCompatActivity implements GoogleApiClient.C
     protected void onDestroy()
     {
         super.onDestroy();
+        mUiHandler.removeCallbacks(mExpiryTick);
+        mUiHandler.removeCallbacks(mSyncMarkers);
+        mStore.removeListener(mStateListener);
+        for (Map.Entry<String, Gauge> gauge : mGauges.entrySet()) {
+            MetricsRegistry.getDefault().removeGauge(gauge.getKey(), gauge.getValue());
+        }
         mapView.onDestroy();
     }
 
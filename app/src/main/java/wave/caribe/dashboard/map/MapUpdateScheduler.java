@@ -0,0 +1,157 @@
+package wave.caribe.dashboard.map;
+
+import android.view.Choreographer;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Applies marker changes to the map once per frame.
+ *
+ * Sensors whose marker needs an update can be marked dirty from any thread. They
+ * are collected in a dirty set, so a sensor changed several times in a frame is
+ * updated once, and handed to the Applier on the UI thread from a Choreographer
+ * frame callback. At most MAX_CHANGES_PER_FRAME
+ * changes, or FRAME_BUDGET_NS of work, are applied per frame, the rest waits for
+ * the next one. A burst touching many sensors thus costs a few frames of work
+ * instead of a queue of runnables.
+ *
+ * Frames skipped between two callbacks while changes were pending are counted,
+ * see getDroppedFrameCount().
+ */
+public class MapUpdateScheduler implements Choreographer.FrameCallback {
+
+    public interface Applier {
+        /**
+         * Called on the UI thread to bring the marker of the sensor up to date.
+         */
+        void apply(int id);
+    }
+
+    private static final int MAX_CHANGES_PER_FRAME = 128;
+    private static final long FRAME_BUDGET_NS = 8000000;
+
+    private final Choreographer mChoreographer;
+    private final Applier mApplier;
+    private final long mFrameIntervalNs;
+
+    // Guarded by this. The dirty ids, in order, each one at most once
+    private int[] mQueue = new int[0];
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean[] mDirty = new boolean[0];
+    private boolean mScheduled = false;
+    private long mDroppedFrames = 0;
+    private long mAppliedChanges = 0;
+
+    // UI thread only
+    private final int[] mBatchIds = new int[MAX_CHANGES_PER_FRAME];
+    private long mLastFrameNs = -1;
+
+    /**
+     * To be created on the UI thread.
+     *
+     * @param refreshRate of the display, in frames per second
+     */
+    public MapUpdateScheduler(Applier applier, float refreshRate) {
+        mChoreographer = Choreographer.getInstance();
+        mApplier = applier;
+        mFrameIntervalNs = (long) (1000000000L / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Forgets every pending change and accepts ids in [0, size), e.g. for a new sensor list.
+     */
+    public synchronized void reset(int size) {
+        mQueue = new int[size];
+        mDirty = new boolean[size];
+        mHead = 0;
+        mCount = 0;
+    }
+
+    public synchronized void request(int id) {
+        if (id < 0 || id >= mDirty.length) {
+            return;
+        }
+        if (!mDirty[id]) {
+            mDirty[id] = true;
+            mQueue[(mHead + mCount) % mQueue.length] = id;
+            mCount++;
+        }
+        if (!mScheduled) {
+            mScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return mCount;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    public synchronized long getAppliedChangeCount() {
+        return mAppliedChanges;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int batch = 0;
+        synchronized (this) {
+            mScheduled = false;
+            if (mLastFrameNs >= 0) {
+                long missed = (frameTimeNanos - mLastFrameNs) / mFrameIntervalNs - 1;
+                if (missed > 0) {
+                    mDroppedFrames += missed;
+                }
+            }
+
+            while (mCount > 0 && batch < MAX_CHANGES_PER_FRAME) {
+                int id = mQueue[mHead];
+                mHead = (mHead + 1) % mQueue.length;
+                mCount--;
+                if (mDirty[id]) {
+                    mDirty[id] = false;
+                    mBatchIds[batch] = id;
+                    batch++;
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        int applied = 0;
+        while (applied < batch) {
+            mApplier.apply(mBatchIds[applied]);
+            applied++;
+            if (System.nanoTime() - start > FRAME_BUDGET_NS) {
+                break;
+            }
+        }
+
+        synchronized (this) {
+            mAppliedChanges += applied;
+            // Out of budget, the rest goes back in front of the queue
+            for (int i = batch - 1; i >= applied; i--) {
+                int id = mBatchIds[i];
+                if (!mDirty[id]) {
+                    mDirty[id] = true;
+                    mHead = (mHead - 1 + mQueue.length) % mQueue.length;
+                    mQueue[mHead] = id;
+                    mCount++;
+                }
+            }
+
+            if (mCount > 0) {
+                // Still busy, the next frame tells whether we made it skip frames
+                mLastFrameNs = frameTimeNanos;
+                if (!mScheduled) {
+                    mScheduled = true;
+                    mChoreographer.postFrameCallback(this);
+                }
+            } else {
+                mLastFrameNs = -1;
+            }
+        }
+    }
+}
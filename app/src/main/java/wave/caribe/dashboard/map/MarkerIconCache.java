@@ -0,0 +1,63 @@
+package wave.caribe.dashboard.map;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+
+import com.mapbox.mapboxsdk.annotations.Icon;
+import com.mapbox.mapboxsdk.annotations.IconFactory;
+
+import java.util.Arrays;
+
+import wave.caribe.dashboard.R;
+
+/**
+ * Caribe Wave Android App
+ *
+ * The marker icon of each sensor state, rasterized once and shared by all markers.
+ *
+ * Icons are built on first use for the current screen density, and built again
+ * if the density changed since. UI thread only.
+ */
+public class MarkerIconCache {
+
+    // Indexed by DashboardState state
+    private static final int[] DRAWABLES = {
+            R.drawable.map_grey,
+            R.drawable.map_green,
+            R.drawable.map_yellow,
+            R.drawable.map_red
+    };
+
+    private final Context mContext;
+    private final Icon[] mIcons = new Icon[DRAWABLES.length];
+    private int mDensityDpi = 0;
+
+    public MarkerIconCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @param state one of the DashboardState.STATE_* constants
+     */
+    public Icon get(int state) {
+        int densityDpi = mContext.getResources().getDisplayMetrics().densityDpi;
+        if (densityDpi != mDensityDpi) {
+            invalidate();
+            mDensityDpi = densityDpi;
+        }
+
+        Icon icon = mIcons[state];
+        if (icon == null) {
+            Drawable drawable = ContextCompat.getDrawable(mContext, DRAWABLES[state]);
+            icon = IconFactory.getInstance(mContext).fromDrawable(drawable);
+            mIcons[state] = icon;
+        }
+        return icon;
+    }
+
+    public void invalidate() {
+        Arrays.fill(mIcons, null);
+        mDensityDpi = 0;
+    }
+}
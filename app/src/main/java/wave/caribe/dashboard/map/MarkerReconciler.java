@@ -0,0 +1,233 @@
+package wave.caribe.dashboard.map;
+
+import com.mapbox.mapboxsdk.annotations.Marker;
+import com.mapbox.mapboxsdk.annotations.MarkerOptions;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.views.MapView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import wave.caribe.dashboard.R;
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.ClusterIndex;
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.state.DashboardState;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Keeps the markers on the map in line with the state of the sensors.
+ *
+ * Sensors are drawn as the clusters of the current zoom level, a cluster of one
+ * being drawn as the sensor itself. The state of a cluster is the highest state of
+ * its sensors, tracked with a count of sensors per state so that a sensor change
+ * costs the same whatever the size of its cluster.
+ *
+ * State changes only update the counts. Clusters whose marker no longer matches
+ * their state are handed to the MapUpdateScheduler, which gets back to us on a
+ * frame to replace just those markers. Resetting the map to its resting state
+ * thus only touches the clusters of the sensors that were warning or alerting.
+ * When the zoom level changes, clusters that exist on both levels keep their
+ * marker, only those that were split or merged are redrawn.
+ *
+ * A state change can be stamped with the time of the event behind it. The
+ * oldest stamp of a cluster is kept until its marker is replaced, and the time
+ * it took is recorded as map.alert.latency or map.measurement.latency, after the
+ * state of the new marker.
+ *
+ * UI thread only.
+ */
+public class MarkerReconciler implements MapUpdateScheduler.Applier {
+
+    // Applied state of a cluster without a marker
+    private static final byte NO_MARKER = -1;
+
+    // From the event to its marker on the map
+    private static final Histogram sAlertLatency = MetricsRegistry.getDefault().histogram("map.alert.latency");
+    private static final Histogram sMeasurementLatency = MetricsRegistry.getDefault().histogram("map.measurement.latency");
+
+    private final MapView mMapView;
+    private final MarkerIconCache mIcons;
+    private final MapUpdateScheduler mScheduler;
+
+    private SensorRegistry mRegistry = new SensorRegistry(DashboardState.EMPTY);
+    private ClusterIndex mClusters = SensorCatalogue.EMPTY.getClusters();
+    private int mLevel = 0;
+
+    // By cluster of the current level
+    private int[] mCounts = new int[0];
+    private Marker[] mMarkers = new Marker[0];
+    private byte[] mApplied = new byte[0];
+    // Oldest System.nanoTime() stamp of the pending change, 0 for none
+    private long[] mSince = new long[0];
+
+    private Runnable mOnFirstMarker;
+
+    public MarkerReconciler(MapView mapView, MarkerIconCache icons, float refreshRate) {
+        mMapView = mapView;
+        mIcons = icons;
+        mScheduler = new MapUpdateScheduler(this, refreshRate);
+    }
+
+    /**
+     * Replaces every marker by those of a new sensor list, added over the next frames.
+     */
+    public void setRegistry(SensorRegistry registry) {
+        if (mMarkers.length > 0) {
+            mMapView.removeAllAnnotations();
+            mMarkers = new Marker[0];
+        }
+        mRegistry = registry;
+        mClusters = registry.getCatalogue().getClusters();
+        switchLevel(ClusterIndex.levelFor(mMapView.getZoomLevel()), false);
+    }
+
+    /**
+     * To be called when the camera moved.
+     */
+    public void setZoom(double zoom) {
+        int level = ClusterIndex.levelFor(zoom);
+        if (level != mLevel) {
+            switchLevel(level, true);
+        }
+    }
+
+    public void setState(int id, int state) {
+        setState(id, state, 0);
+    }
+
+    /**
+     * @param since System.nanoTime() of the event behind the change, 0 if unknown
+     */
+    public void setState(int id, int state, long since) {
+        int previous = mRegistry.getState(id);
+        if (previous == state) {
+            return;
+        }
+        mRegistry.setState(id, state);
+
+        int cluster = mClusters.getCluster(mLevel, id);
+        mCounts[cluster * DashboardState.STATE_COUNT + previous]--;
+        mCounts[cluster * DashboardState.STATE_COUNT + state]++;
+        if (clusterState(cluster) != mApplied[cluster]) {
+            if (since != 0 && (mSince[cluster] == 0 || since - mSince[cluster] < 0)) {
+                mSince[cluster] = since;
+            }
+            mScheduler.request(cluster);
+        }
+    }
+
+    /**
+     * Runs the callback once, right after the next marker is added to the map.
+     */
+    public void setOnFirstMarker(Runnable callback) {
+        mOnFirstMarker = callback;
+    }
+
+    public MapUpdateScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    @Override
+    public void apply(int cluster) {
+        int state = clusterState(cluster);
+        if (state == mApplied[cluster]) {
+            // Changed back before we got to it
+            mSince[cluster] = 0;
+            return;
+        }
+
+        // Markers can't be updated in place, they are replaced
+        if (mMarkers[cluster] != null) {
+            mMapView.removeMarker(mMarkers[cluster]);
+        }
+        mMarkers[cluster] = mMapView.addMarker(markerOptions(cluster, state));
+        mApplied[cluster] = (byte) state;
+
+        if (mSince[cluster] != 0) {
+            if (state == DashboardState.STATE_ALERT) {
+                sAlertLatency.recordSince(mSince[cluster]);
+            } else if (state == DashboardState.STATE_WARNING) {
+                sMeasurementLatency.recordSince(mSince[cluster]);
+            }
+            mSince[cluster] = 0;
+        }
+
+        if (mOnFirstMarker != null) {
+            Runnable callback = mOnFirstMarker;
+            mOnFirstMarker = null;
+            callback.run();
+        }
+    }
+
+    private MarkerOptions markerOptions(int cluster, int state) {
+        int size = mClusters.getSize(mLevel, cluster);
+        if (size == 1) {
+            Sensor sensor = mRegistry.getSensor(mClusters.getFirstSensor(mLevel, cluster));
+            return new MarkerOptions()
+                    .position(new LatLng(sensor.getLatitude(), sensor.getLongitude()))
+                    .title(sensor.getName())
+                    .icon(mIcons.get(state))
+                    .snippet(sensor.getUid());
+        }
+        return new MarkerOptions()
+                .position(new LatLng(mClusters.getLatitude(mLevel, cluster), mClusters.getLongitude(mLevel, cluster)))
+                .title(mMapView.getContext().getString(R.string.cluster_title, size))
+                .icon(mIcons.get(state));
+    }
+
+    private int clusterState(int cluster) {
+        int base = cluster * DashboardState.STATE_COUNT;
+        for (int state = DashboardState.STATE_COUNT - 1; state > 0; state--) {
+            if (mCounts[base + state] > 0) {
+                return state;
+            }
+        }
+        return DashboardState.STATE_DISABLED;
+    }
+
+    private void switchLevel(int level, boolean keepMarkers) {
+        // Markers of the clusters we leave, by cluster key
+        HashMap<Long, Integer> previous = new HashMap<>();
+        if (keepMarkers) {
+            for (int cluster = 0; cluster < mMarkers.length; cluster++) {
+                if (mMarkers[cluster] != null) {
+                    previous.put(mClusters.getKey(mLevel, cluster), cluster);
+                }
+            }
+        }
+        Marker[] previousMarkers = mMarkers;
+        byte[] previousApplied = mApplied;
+
+        int count = mClusters.getClusterCount(level);
+        mLevel = level;
+        mCounts = new int[count * DashboardState.STATE_COUNT];
+        mMarkers = new Marker[count];
+        mApplied = new byte[count];
+        mSince = new long[count];
+        Arrays.fill(mApplied, NO_MARKER);
+        for (int id = 0; id < mRegistry.size(); id++) {
+            mCounts[mClusters.getCluster(level, id) * DashboardState.STATE_COUNT + mRegistry.getState(id)]++;
+        }
+
+        mScheduler.reset(count);
+        for (int cluster = 0; cluster < count; cluster++) {
+            Integer kept = previous.remove(mClusters.getKey(level, cluster));
+            if (kept != null) {
+                mMarkers[cluster] = previousMarkers[kept];
+                mApplied[cluster] = previousApplied[kept];
+            }
+            if (clusterState(cluster) != mApplied[cluster]) {
+                mScheduler.request(cluster);
+            }
+        }
+
+        // The clusters that were split or merged
+        for (int cluster : previous.values()) {
+            mMapView.removeMarker(previousMarkers[cluster]);
+        }
+    }
+}
@@ -2,72 +2,113 @@ package wave.caribe.dashboard.services;
 
 import android.os.AsyncTask;
 import android.util.Log;
-import org.json.JSONArray;
-import org.json.JSONException;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.storage.SensorCatalogueCache;
 
 /**
  * Caribe Wave Android App
  *
  * Helper class for Http Async tasks
  *
+ * Fetches the sensor list, which is parsed while it is downloaded. The cached list
+ * is published first, then revalidated. Everything up to the ready to render
+ * catalogue happens in the background, only the result reaches the UI thread.
+ *
  * Created by tchap on 14/03/16.
  */
-public class AsyncHttpTask extends AsyncTask<String, Void, Integer> {
+public class AsyncHttpTask extends AsyncTask<String, SensorCatalogue, Integer> {
 
     private static final String TAG = "CW:ASYNC HTTP TASK";
 
-    private JSONArray sensors = null;
+    private static final int NOT_MODIFIED = 2;
+
+    private SensorCatalogue sensors = null;
 
     public interface TaskListener {
-        void onFinished(JSONArray result);
+        /**
+         * The list kept from last time, before asking the API.
+         */
+        void onCached(SensorCatalogue result);
+
+        void onFinished(SensorCatalogue result);
+
+        /**
+         * The cached list is still up to date.
+         */
+        void onNotModified();
     }
 
     // This is the reference to the associated listener
     private final TaskListener taskListener;
+    private final HttpClient httpClient;
+    private final SensorCatalogueCache cache;
 
-    public AsyncHttpTask(TaskListener listener) {
+    public AsyncHttpTask(HttpClient client, SensorCatalogueCache cache, TaskListener listener) {
         // The listener reference is passed in through the constructor
         this.taskListener = listener;
+        this.httpClient = client;
+        this.cache = cache;
     }
 
 
     @Override
     protected Integer doInBackground(String ... params) {
-        InputStream inputStream;
-        HttpURLConnection urlConnection;
+        String url = params[0];
         Integer result = 0;
+
+        // Show the last known list right away, the request only revalidates it
+        HashMap<String, String> headers = new HashMap<>();
+        SensorCatalogueCache.Entry cached = cache.load(url);
+        if (cached != null) {
+            publishProgress(SensorCatalogue.build(cached.getSensors()));
+            if (cached.getETag() != null) {
+                headers.put("If-None-Match", cached.getETag());
+            }
+            if (cached.getLastModified() != null) {
+                headers.put("If-Modified-Since", cached.getLastModified());
+            }
+        }
+
         try {
-            URL url = new URL(params[0]);
-            urlConnection = (HttpURLConnection) url.openConnection();
-
-            urlConnection.setRequestProperty("Content-Type", "application/json");
-            urlConnection.setRequestProperty("Accept", "application/json");
-            urlConnection.setRequestMethod("GET");
-            int statusCode = urlConnection.getResponseCode();
-
-            /* 200 represents HTTP OK */
-            if (statusCode ==  200) {
-                inputStream = new BufferedInputStream(urlConnection.getInputStream());
-                String response = convertInputStreamToString(inputStream);
-                parseResult(response);
-                result = 1;
-            } else {
-                result = 0;
+            HttpClient.Response response = httpClient.get(url, headers);
+            try {
+                int statusCode = response.getStatus();
+
+                if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // Nothing to download nor parse
+                    result = NOT_MODIFIED;
+                } else if (statusCode == HttpURLConnection.HTTP_OK) {
+                    ArrayList<Sensor> fetched = parseResult(response.getBody());
+                    sensors = SensorCatalogue.build(fetched);
+                    result = 1;
+
+                    saveResult(new SensorCatalogueCache.Entry(url, response.getHeader("ETag"),
+                            response.getHeader("Last-Modified"), fetched));
+                }
+            } finally {
+                response.close();
             }
         } catch (Exception e) {
-            Log.d(TAG, e.getLocalizedMessage());
+            Log.d(TAG, String.valueOf(e.getLocalizedMessage()));
         }
         return result;
     }
 
+    @Override
+    protected void onProgressUpdate(SensorCatalogue... cached) {
+        if(this.taskListener != null) {
+            this.taskListener.onCached(cached[0]);
+        }
+    }
+
     @Override
     protected void onPostExecute(Integer result) {
         /* Download complete. Lets call mainactivity */
@@ -79,32 +120,31 @@ public class AsyncHttpTask extends AsyncTask<String, Void, Integer> {
                 // And if it is we call the callback function on it.
                 this.taskListener.onFinished(sensors);
             }
+        } else if (result == NOT_MODIFIED) {
+            if(this.taskListener != null) {
+                this.taskListener.onNotModified();
+            }
         } else {
             Log.e(TAG, "Failed to fetch data!");
         }
     }
 
-    private String convertInputStreamToString(InputStream inputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader( new InputStreamReader(inputStream));
-        String line;
-        String result = "";
-        while((line = bufferedReader.readLine()) != null){
-            result += line;
-        }
-
-        /* Close Stream */
-        //noinspection ConstantConditions
-        if(null!=inputStream){
-            inputStream.close();
-        }
+    private ArrayList<Sensor> parseResult(InputStream inputStream) throws IOException {
+        final ArrayList<Sensor> result = new ArrayList<>();
+        SensorListParser.parse(inputStream, new SensorListParser.SensorSink() {
+            @Override
+            public void onSensor(Sensor sensor) {
+                result.add(sensor);
+            }
+        });
         return result;
     }
 
-    private void parseResult(String result) {
-        try{
-            sensors = new JSONArray(result);
-        }catch (JSONException e){
-            e.printStackTrace();
+    private void saveResult(SensorCatalogueCache.Entry entry) {
+        try {
+            cache.save(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache the sensor list : " + e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,211 @@
+package wave.caribe.dashboard.services;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import wave.caribe.dashboard.metrics.Counter;
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+
+/**
+ * Caribe Wave Android App
+ *
+ * The single way out to the HTTP APIs.
+ *
+ * Every request gets connect and read timeouts, asks for gzip and goes through the
+ * on-disk response cache. Connections are kept alive and reused by the platform
+ * as long as each response is closed, which Response takes care of by reading
+ * what is left of the body first. Requests are counted and timed in the http.*
+ * metrics, and logged.
+ */
+public class HttpClient {
+
+    private static final String TAG = "CW:HTTP CLIENT";
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final String CACHE_DIR = "http";
+    private static final long CACHE_SIZE = 4 * 1024 * 1024;
+
+    private static HttpClient sInstance;
+
+    private final Counter mRequests = MetricsRegistry.getDefault().counter("http.requests");
+    private final Counter mFailures = MetricsRegistry.getDefault().counter("http.failures");
+    // Until the headers, and until the response is closed
+    private final Histogram mHeadersTime = MetricsRegistry.getDefault().histogram("http.headers");
+    private final Histogram mRequestTime = MetricsRegistry.getDefault().histogram("http.request");
+
+    public static synchronized HttpClient getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HttpClient(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private HttpClient(Context context) {
+        if (HttpResponseCache.getInstalled() == null) {
+            try {
+                HttpResponseCache.install(new File(context.getCacheDir(), CACHE_DIR), CACHE_SIZE);
+            } catch (IOException e) {
+                Log.w(TAG, "No HTTP response cache : " + e);
+            }
+        }
+    }
+
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return execute("GET", url, headers, null, null);
+    }
+
+    public Response get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    public Response postJson(String url, String json) throws IOException {
+        return execute("POST", url, Collections.<String, String>emptyMap(), "application/json; charset=utf-8",
+                json.getBytes("UTF-8"));
+    }
+
+    private Response execute(String method, String url, Map<String, String> headers,
+                             String contentType, byte[] body) throws IOException {
+        long start = System.nanoTime();
+        mRequests.inc();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", "application/json");
+            // Asking explicitly means we have to inflate it ourselves, see Response
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            return new Response(method, url, connection, status, start);
+        } catch (IOException e) {
+            mFailures.inc();
+            mRequestTime.recordSince(start);
+            Log.i(TAG, method + " " + url + " failed after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms : " + e);
+            // A broken connection must not go back to the pool
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    public class Response implements Closeable {
+
+        private final String mMethod;
+        private final String mUrl;
+        private final HttpURLConnection mConnection;
+        private final int mStatus;
+        private final long mStart;
+        private final long mHeadersTimeNs;
+        private InputStream mBody;
+        private boolean mClosed = false;
+
+        private Response(String method, String url, HttpURLConnection connection, int status, long start) {
+            mMethod = method;
+            mUrl = url;
+            mConnection = connection;
+            mStatus = status;
+            mStart = start;
+            mHeadersTimeNs = System.nanoTime() - start;
+            mHeadersTime.record(mHeadersTimeNs / 1000);
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * The body, inflated if needed, also for error statuses. Closed with the response.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream raw = mStatus < 400 ? mConnection.getInputStream() : mConnection.getErrorStream();
+                if (raw == null) {
+                    // No body at all (304, 204...)
+                    mBody = new ByteArrayInputStream(new byte[0]);
+                } else if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding())) {
+                    mBody = new GZIPInputStream(new BufferedInputStream(raw));
+                } else {
+                    mBody = new BufferedInputStream(raw);
+                }
+            }
+            return mBody;
+        }
+
+        public String getBodyAsString() throws IOException {
+            Reader reader = new InputStreamReader(getBody(), "UTF-8");
+            StringBuilder result = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                result.append(buffer, 0, read);
+            }
+            return result.toString();
+        }
+
+        /**
+         * Reads the rest of the body, so that the connection can be reused, and records the timing.
+         */
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                InputStream body = getBody();
+                byte[] buffer = new byte[4096];
+                //noinspection StatementWithEmptyBody
+                while (body.read(buffer) != -1);
+                body.close();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+
+            long total = System.nanoTime() - mStart;
+            mRequestTime.record(total / 1000);
+            Log.i(TAG, mMethod + " " + mUrl + " : " + mStatus + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(total) + "ms (headers after "
+                    + TimeUnit.NANOSECONDS.toMillis(mHeadersTimeNs) + "ms)");
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package wave.caribe.dashboard.services;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.MQTT.ConnectionListener;
+import wave.caribe.dashboard.MQTT.ConnectionStateMachine;
+import wave.caribe.dashboard.MQTT.MQTTCallbackInterface;
+import wave.caribe.dashboard.MQTT.MQTTClient;
+import wave.caribe.dashboard.metrics.Gauge;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Measurement;
+import wave.caribe.dashboard.model.TimeSeriesStore;
+import wave.caribe.dashboard.storage.EventLog;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Owns the MQTT connection, so that it outlives the activity.
+ *
+ * The activity starts and binds the service while it is visible, and registers
+ * listeners for the live event stream. Once nobody is bound anymore the connection
+ * is kept for pref_idle_timeout seconds, so that a rotation or a quick app switch
+ * doesn't cost a full reconnection, then the service disconnects and stops.
+ *
+ * Every event is also appended to an on-disk log. When the service is created, the
+ * last REPLAY_WINDOW_MIN minutes are read back into the history and the last alert
+ * before connecting, so that a restarted process picks up where the previous one was.
+ */
+public class MQTTService extends Service {
+
+    private static final String TAG = "CW:MQTT SERVICE";
+
+    private static final int DEFAULT_IDLE_TIMEOUT_S = 60;
+
+    // Recent samples kept per sensor, and across all sensors by default
+    private static final int HISTORY_SAMPLES_PER_SENSOR = 512;
+    private static final int DEFAULT_HISTORY_BUDGET = 131072;
+
+    // On-disk event log
+    private static final String EVENT_LOG_DIR = "events";
+    private static final long EVENT_LOG_MAX_BYTES = 32 * 1024 * 1024;
+    private static final long EVENT_LOG_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int REPLAY_WINDOW_MIN = 10;
+
+    public class LocalBinder extends Binder {
+        public MQTTService getService() {
+            return MQTTService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler();
+
+    private final CopyOnWriteArrayList<MQTTCallbackInterface> mListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ConnectionListener> mConnectionListeners = new CopyOnWriteArrayList<>();
+
+    private MQTTClient mMQTTClient;
+    private TimeSeriesStore mTimeSeries;
+    private EventLog mEventLog;
+    private SharedPreferences sharedPref;
+
+    // Main thread only
+    private boolean mReplayed = false;
+    private boolean mConnectPending = false;
+
+    // Guarded by this
+    private String mLastAlert;
+    private long mLastAlertTime;
+
+    // Relays the events of the connection to every registered listener
+    private final MQTTCallbackInterface mEventRelay = new MQTTCallbackInterface() {
+        public void newMeasurement(String uid, JSONArray data) {
+            for (MQTTCallbackInterface listener : mListeners) {
+                listener.newMeasurement(uid, data);
+            }
+        }
+        public void newMeasurement(String uid, Measurement measurement) {
+            // Before any listener, so that no sample is lost to coalescing downstream
+            mTimeSeries.append(uid, measurement);
+            mEventLog.append(uid, measurement);
+            for (MQTTCallbackInterface listener : mListeners) {
+                listener.newMeasurement(uid, measurement);
+            }
+        }
+        public void alert(JSONObject data) {
+            long now = System.currentTimeMillis();
+            String alert = data.toString();
+            setLastAlert(now, alert);
+            mEventLog.appendAlert(now, alert);
+            for (MQTTCallbackInterface listener : mListeners) {
+                listener.alert(data);
+            }
+        }
+        public void replayed() {
+            for (MQTTCallbackInterface listener : mListeners) {
+                listener.replayed();
+            }
+        }
+    };
+
+    private final ConnectionListener mConnectionRelay = new ConnectionListener() {
+        public void onConnecting() {
+            for (ConnectionListener listener : mConnectionListeners) {
+                listener.onConnecting();
+            }
+        }
+        public void onConnected() {
+            for (ConnectionListener listener : mConnectionListeners) {
+                listener.onConnected();
+            }
+        }
+        public void onDisconnected(Throwable cause) {
+            for (ConnectionListener listener : mConnectionListeners) {
+                listener.onDisconnected(cause);
+            }
+        }
+    };
+
+    private final Gauge mLoggedEvents = new Gauge() {
+        @Override
+        public long get() {
+            return mEventLog.getWrittenCount();
+        }
+    };
+
+    private final Gauge mUnloggedEvents = new Gauge() {
+        @Override
+        public long get() {
+            return mEventLog.getDroppedCount();
+        }
+    };
+
+    private final Gauge mFailedSegments = new Gauge() {
+        @Override
+        public long get() {
+            return mEventLog.getFailedSegmentCount();
+        }
+    };
+
+    private final Gauge mHistorySensors = new Gauge() {
+        @Override
+        public long get() {
+            return mTimeSeries.sensorCount();
+        }
+    };
+
+    private final Gauge mHistoryEvictions = new Gauge() {
+        @Override
+        public long get() {
+            return mTimeSeries.getEvictedCount();
+        }
+    };
+
+    private final Runnable mIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "Idle for too long, disconnecting");
+            mConnectPending = false;
+            mMQTTClient.disconnect();
+            stopSelf();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
+
+        mTimeSeries = new TimeSeriesStore(HISTORY_SAMPLES_PER_SENSOR,
+                Math.max(HISTORY_SAMPLES_PER_SENSOR, getIntPreference("pref_history_budget", DEFAULT_HISTORY_BUDGET)));
+
+        Log.i(TAG, "Creating MQTT Client");
+        mMQTTClient = new MQTTClient(this);
+        mMQTTClient.setConnectionListener(mConnectionRelay);
+
+        mEventLog = new EventLog(new File(getFilesDir(), EVENT_LOG_DIR), EVENT_LOG_MAX_BYTES, EVENT_LOG_MAX_AGE_MS);
+        new Thread(mReplay, "EventLogReplay").start();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge("eventlog.written", mLoggedEvents);
+        metrics.gauge("eventlog.dropped", mUnloggedEvents);
+        metrics.gauge("eventlog.failed", mFailedSegments);
+        metrics.gauge("history.sensors", mHistorySensors);
+        metrics.gauge("history.evicted", mHistoryEvictions);
+    }
+
+    // Reads the recent events back, then starts logging and lets the connection go
+    private final Runnable mReplay = new Runnable() {
+        @Override
+        public void run() {
+            long since = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(REPLAY_WINDOW_MIN);
+            long start = System.nanoTime();
+            try {
+                int count = mEventLog.replay(since, new EventLog.Visitor() {
+                    public void onMeasurement(String uid, Measurement measurement) {
+                        mTimeSeries.append(uid, measurement);
+                    }
+                    public void onAlert(long timestamp, String alert) {
+                        setLastAlert(timestamp, alert);
+                    }
+                });
+                MetricsRegistry.getDefault().histogram("eventlog.replay").recordSince(start);
+                Log.i(TAG, "Replayed " + count + " events in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            } catch (IOException e) {
+                Log.w(TAG, "Could not replay the event log : " + e);
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onReplayed();
+                }
+            });
+        }
+    };
+
+    private void onReplayed() {
+        mReplayed = true;
+        mEventLog.start();
+        mEventRelay.replayed();
+        if (mConnectPending) {
+            mConnectPending = false;
+            mMQTTClient.connect(mEventRelay);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Only lives as long as someone uses it, don't restart if killed
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        onClientBound();
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        onClientBound();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        long timeout = getIdleTimeoutSeconds();
+        Log.i(TAG, "No more clients, disconnecting in " + timeout + "s");
+        mHandler.postDelayed(mIdleTimeout, timeout * 1000);
+        // We want onRebind() when the activity comes back
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mIdleTimeout);
+        mConnectPending = false;
+        mMQTTClient.close();
+        mEventLog.close();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.removeGauge("eventlog.written", mLoggedEvents);
+        metrics.removeGauge("eventlog.dropped", mUnloggedEvents);
+        metrics.removeGauge("eventlog.failed", mFailedSegments);
+        metrics.removeGauge("history.sensors", mHistorySensors);
+        metrics.removeGauge("history.evicted", mHistoryEvictions);
+    }
+
+    private void onClientBound() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        if (!mReplayed) {
+            // Live events must not interleave with the replayed ones
+            mConnectPending = true;
+            return;
+        }
+        // No-op if we are still connected or connecting
+        mMQTTClient.connect(mEventRelay);
+    }
+
+    private synchronized void setLastAlert(long timestamp, String alert) {
+        if (timestamp >= mLastAlertTime) {
+            mLastAlertTime = timestamp;
+            mLastAlert = alert;
+        }
+    }
+
+    private long getIdleTimeoutSeconds() {
+        return Math.max(0, getIntPreference("pref_idle_timeout", DEFAULT_IDLE_TIMEOUT_S));
+    }
+
+    // Numeric preferences are stored as strings by EditTextPreference
+    private int getIntPreference(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(sharedPref.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Tears the connection down and connects again, e.g. after the settings changed.
+     */
+    public void reconnect() {
+        if (!mReplayed) {
+            mConnectPending = true;
+            return;
+        }
+        mMQTTClient.reconnect(mEventRelay);
+    }
+
+    /**
+     * @return whether the recent events were read back from the log, main thread only
+     */
+    public boolean isReplayed() {
+        return mReplayed;
+    }
+
+    /**
+     * Recent samples of every sensor, kept as long as the service lives.
+     */
+    public TimeSeriesStore getTimeSeriesStore() {
+        return mTimeSeries;
+    }
+
+    /**
+     * @return the last alert received, live or replayed from the log, if it is not older than maxAgeMs
+     */
+    public synchronized JSONObject getRecentAlert(long maxAgeMs) {
+        if (mLastAlert == null || System.currentTimeMillis() - mLastAlertTime > maxAgeMs) {
+            return null;
+        }
+        try {
+            return new JSONObject(mLastAlert);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return when the last alert was received, in ms since the epoch, or 0
+     */
+    public synchronized long getRecentAlertTime() {
+        return mLastAlertTime;
+    }
+
+    public boolean isConnected() {
+        return mMQTTClient.isConnected();
+    }
+
+    public ConnectionStateMachine.State getConnectionState() {
+        return mMQTTClient.getConnectionState();
+    }
+
+    public void addStateListener(ConnectionStateMachine.StateListener listener) {
+        mMQTTClient.addStateListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.StateListener listener) {
+        mMQTTClient.removeStateListener(listener);
+    }
+
+    public void addListener(MQTTCallbackInterface listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(MQTTCallbackInterface listener) {
+        mListeners.remove(listener);
+    }
+
+    public void addConnectionListener(ConnectionListener listener) {
+        mConnectionListeners.addIfAbsent(listener);
+    }
+
+    public void removeConnectionListener(ConnectionListener listener) {
+        mConnectionListeners.remove(listener);
+    }
+}
@@ -14,14 +14,8 @@ import com.google.android.gms.iid.InstanceID;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
 
 import wave.caribe.dashboard.MainActivity;
 import wave.caribe.dashboard.R;
@@ -111,78 +105,38 @@ public class RegistrationIntentService extends IntentService {
             return false;
         }
 
-        InputStream inputStream;
-        HttpURLConnection urlConnection;
         try {
-
-            /* forming th java.net.URL object */
-            URL url = new URL(reg_url);
-            DataOutputStream printout;
-            urlConnection = (HttpURLConnection) url.openConnection();
-
-
-            urlConnection.setDoInput(true);
-            urlConnection.setDoOutput(true);
-            urlConnection.setUseCaches(false);
-            urlConnection.setRequestProperty("Content-Type","application/json");
-            urlConnection.setRequestProperty("Content-Type", "application/json");
-            urlConnection.setRequestProperty("Accept", "application/json");
-            urlConnection.setRequestMethod("POST");
-            urlConnection.setRequestProperty("charset", "utf-8");
-            urlConnection.connect();
             //Create JSONObject
             JSONObject jsonParam = new JSONObject();
             jsonParam.put("token", token);
 
-            printout = new DataOutputStream(urlConnection.getOutputStream ());
-            printout.writeBytes(jsonParam.toString());
-            printout.flush();
-            printout.close();
-
-            int statusCode = urlConnection.getResponseCode();
-
-            /* 200 represents HTTP OK */
-            if (statusCode ==  200) {
-                inputStream = new BufferedInputStream(urlConnection.getInputStream());
-                String response = convertInputStreamToString(inputStream);
-
-                try {
-                    JSONObject rep = new JSONObject(response);
-                    if (rep.get("status").equals("ok")) {
-                        Log.i(TAG, "OK From register server");
-                        return true;
+            HttpClient.Response response = HttpClient.getInstance(this).postJson(reg_url, jsonParam.toString());
+            try {
+                /* 200 represents HTTP OK */
+                if (response.getStatus() == HttpURLConnection.HTTP_OK) {
+                    try {
+                        JSONObject rep = new JSONObject(response.getBodyAsString());
+                        if (rep.get("status").equals("ok")) {
+                            Log.i(TAG, "OK From register server");
+                            return true;
+                        }
+                    } catch (JSONException e){
+                        e.printStackTrace();
+                        Log.i(TAG, "Bad response from register server");
+                        return false;
                     }
-                } catch (JSONException e){
-                    e.printStackTrace();
-                    Log.i(TAG, "Bad response from register server");
-                    return false;
                 }
-
+            } finally {
+                response.close();
             }
         } catch (Exception e) {
-            Log.d(TAG, e.getLocalizedMessage());
+            Log.d(TAG, String.valueOf(e.getLocalizedMessage()));
         }
 
         Log.i(TAG, "Impossible to connect to token endpoint");
         return false;
     }
 
-    private String convertInputStreamToString(InputStream inputStream) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader( new InputStreamReader(inputStream));
-        String line;
-        String result = "";
-        while((line = bufferedReader.readLine()) != null){
-            result += line;
-        }
-
-        /* Close Stream */
-        //noinspection ConstantConditions
-        if(null!=inputStream){
-            inputStream.close();
-        }
-        return result;
-    }
-
     /**
      * Subscribe to any GCM topics of interest, as defined by the TOPICS constant.
      *
@@ -0,0 +1,67 @@
+package wave.caribe.dashboard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.services.SensorListParser;
+
+/**
+ * Caribe Wave Android App
+ *
+ * From the sensor API response to a ready to render catalogue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogueBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int sensors;
+
+    private byte[] response;
+    private List<Sensor> parsed;
+
+    @Setup
+    public void setUp() throws IOException {
+        response = Fleet.json(Fleet.sensors(sensors, 42)).getBytes(Charset.forName("UTF-8"));
+        parsed = parse();
+    }
+
+    @Benchmark
+    public List<Sensor> parse() throws IOException {
+        final List<Sensor> sensors = new ArrayList<>();
+        SensorListParser.parse(new ByteArrayInputStream(response), new SensorListParser.SensorSink() {
+            @Override
+            public void onSensor(Sensor sensor) {
+                sensors.add(sensor);
+            }
+        });
+        return sensors;
+    }
+
+    @Benchmark
+    public SensorCatalogue build() {
+        return SensorCatalogue.build(parsed);
+    }
+}
@@ -0,0 +1,50 @@
+package wave.caribe.dashboard.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Synthetic sensors spread over the Caribbean, the same for a given seed.
+ */
+final class Fleet {
+
+    private Fleet() {}
+
+    static String uid(int i) {
+        return String.format(Locale.US, "%08x", i * 2654435761L & 0xffffffffL);
+    }
+
+    static List<Sensor> sensors(int count, long seed) {
+        Random random = new Random(seed);
+        List<Sensor> sensors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // One place in 20 has no sensor
+            String uid = i % 20 == 19 ? null : uid(i);
+            sensors.add(new Sensor(uid, "Place " + i, 10 + random.nextDouble() * 15, -85 + random.nextDouble() * 25));
+        }
+        return sensors;
+    }
+
+    /**
+     * @return the sensor API (allPlacesInfos) response for these sensors
+     */
+    static String json(List<Sensor> sensors) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < sensors.size(); i++) {
+            Sensor sensor = sensors.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US, "{\"name\": \"%s\", \"lat\": \"%.6f\", \"lon\": %.6f, \"sensor_uids\": [%s]}",
+                    sensor.getName(), sensor.getLatitude(), sensor.getLongitude(),
+                    sensor.hasUid() ? "\"" + sensor.getUid() + "\"" : "\"null\""));
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,73 @@
+package wave.caribe.dashboard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.MQTT.MeasurementDecoder;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Decoding of measurement payloads, as done for every message on the MQTT callback thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeasurementDecoderBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int samples;
+
+    private final MeasurementDecoder decoder = new MeasurementDecoder();
+    private byte[] payload;
+    private String[] topics;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < samples; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            // A timestamp and the three axes, as sent by the sensors
+            json.append(String.format(Locale.US, "[%d, %.4f, %.4f, %.4f]", 1458000000000L + i * 10,
+                    random.nextGaussian(), random.nextGaussian(), random.nextGaussian()));
+        }
+        payload = json.append(']').toString().getBytes(Charset.forName("US-ASCII"));
+
+        topics = new String[1024];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "measurement/sensor-" + i;
+        }
+    }
+
+    @Benchmark
+    public wave.caribe.dashboard.model.Measurement decode() {
+        return decoder.decode(payload, 0L);
+    }
+
+    @Benchmark
+    public String uidForTopic() {
+        next = (next + 1) & (topics.length - 1);
+        return decoder.uidForTopic(topics[next]);
+    }
+}
@@ -0,0 +1,69 @@
+package wave.caribe.dashboard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.MQTT.TopicRouter;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Dispatch of incoming topics to their handler, with the filters of the app
+ * and a few more to keep the tree honest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicRouterBenchmark {
+
+    private static final byte[] PAYLOAD = new byte[0];
+
+    private TopicRouter router;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        TopicRouter.Handler handler = new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                TopicRouterBenchmark.this.blackhole.consume(topic);
+            }
+        };
+        router = new TopicRouter.Builder()
+                .route("measurement/+", handler)
+                .route("alert/general", handler)
+                .route("status/#", handler)
+                .route("config/+/set", handler)
+                .build();
+    }
+
+    @Benchmark
+    public int measurement() throws Exception {
+        return router.dispatch("measurement/0a1b2c3d", PAYLOAD);
+    }
+
+    @Benchmark
+    public int alert() throws Exception {
+        return router.dispatch("alert/general", PAYLOAD);
+    }
+
+    @Benchmark
+    public int unrouted() throws Exception {
+        return router.dispatch("unknown/topic/deep", PAYLOAD);
+    }
+}
@@ -0,0 +1,78 @@
+package wave.caribe.dashboard.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.state.DashboardState;
+import wave.caribe.dashboard.state.DashboardStore;
+
+/**
+ * Caribe Wave Android App
+ *
+ * From the uid of a measurement to the state of its sensor : the lookup, and the
+ * whole store update done for each measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UidLookupBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int sensors;
+
+    private SensorCatalogue catalogue;
+    private DashboardStore store;
+    private String[] uids;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        catalogue = SensorCatalogue.build(Fleet.sensors(sensors, 42));
+        store = new DashboardStore(DashboardState.of(catalogue));
+
+        // Known and unknown sensors, in random order
+        Random random = new Random(42);
+        uids = new String[4096];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = Fleet.uid(random.nextInt(sensors + sensors / 10 + 1));
+        }
+    }
+
+    @Benchmark
+    public int indexOf() {
+        next = (next + 1) & (uids.length - 1);
+        return catalogue.indexOf(uids[next]);
+    }
+
+    @Benchmark
+    public DashboardState storeUpdate() {
+        next = (next + 1) & (uids.length - 1);
+        final String uid = uids[next];
+        final int state = (next & 1) == 0 ? DashboardState.STATE_WARNING : DashboardState.STATE_STILL;
+        return store.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder builder) {
+                SensorCatalogue catalogue = builder.getCatalogue();
+                for (int id = catalogue.indexOf(uid); id >= 0; id = catalogue.nextIndexOf(id)) {
+                    builder.setState(id, state);
+                }
+            }
+        });
+    }
+}
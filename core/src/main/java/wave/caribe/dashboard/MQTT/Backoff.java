@@ -0,0 +1,45 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.util.Random;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Capped exponential backoff with jitter.
+ *
+ * The n-th consecutive failure waits between half and all of min(max, base * 2^n),
+ * the random part keeping a fleet of clients from reconnecting in lockstep.
+ */
+public class Backoff {
+
+    private static final int MAX_SHIFT = 16;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom = new Random();
+
+    private int mFailures = 0;
+
+    public Backoff(long baseDelayMs, long maxDelayMs) {
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Counts one more failure and returns how long to wait before the next attempt.
+     */
+    public long nextDelayMs() {
+        long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(mFailures, MAX_SHIFT));
+        mFailures++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+
+    public void reset() {
+        mFailures = 0;
+    }
+
+    public int getFailures() {
+        return mFailures;
+    }
+}
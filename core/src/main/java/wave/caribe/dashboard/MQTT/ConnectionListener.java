@@ -0,0 +1,14 @@
+package wave.caribe.dashboard.MQTT;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Callback interface for the state of the MQTT connection
+ */
+public interface ConnectionListener {
+    void onConnecting();
+    // Connected and subscribed to every topic
+    void onConnected();
+    // The cause is null when we asked for the disconnection
+    void onDisconnected(Throwable cause);
+}
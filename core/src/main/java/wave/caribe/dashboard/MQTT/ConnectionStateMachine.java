@@ -0,0 +1,362 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Serializes everything that happens to the MQTT connection.
+ *
+ * Requests (connect, reconnect, disconnect) and outcomes reported by Paho are all
+ * posted to a single thread, which owns the state. A connect request while already
+ * connecting or connected is collapsed into the ongoing one, and the outcome of an
+ * attempt that has been superseded is ignored, so there is never more than one
+ * connection in flight.
+ *
+ *   DISCONNECTED -> CONNECTING -> CONNECTED
+ *                       |             |  connection lost
+ *                       v             v
+ *                     BACKING_OFF <---+   retries with a capped exponential backoff,
+ *                                         or right away when a network comes back
+ *
+ * Any state goes through CLOSING on disconnect. Losing the network of the connection
+ * goes straight back to CONNECTING, without waiting for the keepalive to time out.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+        BACKING_OFF,
+        CLOSING
+    }
+
+    /**
+     * The actual connection, driven from the state machine thread.
+     */
+    public interface Driver {
+        /**
+         * Starts connecting and subscribing without blocking. The outcome must be
+         * reported with onConnected(attempt) or onConnectFailed(attempt, cause).
+         */
+        void connect(int attempt);
+
+        /**
+         * Closes the connection, may block for a bounded time.
+         */
+        void disconnect();
+
+        /**
+         * Releases everything the driver holds, called once on shutdown.
+         */
+        void release();
+    }
+
+    public interface StateListener {
+        /**
+         * Called on the state machine thread. The cause is set when a failure led to the new state.
+         */
+        void onStateChanged(State from, State to, Throwable cause);
+    }
+
+    private final Driver mDriver;
+    private final Backoff mBackoff;
+    private final ScheduledExecutorService mExecutor;
+    private final CopyOnWriteArrayList<StateListener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Only touched from the state machine thread
+    private State mState = State.DISCONNECTED;
+    private int mAttempt = 0;
+    private ScheduledFuture<?> mRetry;
+    private long mNetworkRestoredAt = -1;
+
+    private volatile State mPublishedState = State.DISCONNECTED;
+    private volatile boolean mWanted = false;
+    private volatile long mLastRecoveryMs = -1;
+    private volatile long mCollapsedRequests = 0;
+
+    public ConnectionStateMachine(Driver driver, Backoff backoff) {
+        mDriver = driver;
+        mBackoff = backoff;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "MQTTConnection");
+            }
+        });
+    }
+
+    /**
+     * Connects unless already connected or connecting.
+     */
+    public void connect() {
+        mWanted = true;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                requestConnect(false);
+            }
+        });
+    }
+
+    /**
+     * Like connect(), but an established connection is closed and opened again.
+     */
+    public void reconnect() {
+        mWanted = true;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                requestConnect(true);
+            }
+        });
+    }
+
+    public void disconnect() {
+        mWanted = false;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Disconnects and stops the state machine thread, nothing can be requested afterwards.
+     */
+    public void shutdown() {
+        disconnect();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mDriver.release();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    public void onConnected(final int attempt) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (attempt != mAttempt || mState != State.CONNECTING) {
+                    return;
+                }
+                mBackoff.reset();
+                if (mNetworkRestoredAt >= 0) {
+                    mLastRecoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mNetworkRestoredAt);
+                    mNetworkRestoredAt = -1;
+                }
+                transition(State.CONNECTED, null);
+            }
+        });
+    }
+
+    public void onConnectFailed(final int attempt, final Throwable cause) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (attempt == mAttempt && mState == State.CONNECTING) {
+                    backOff(cause);
+                }
+            }
+        });
+    }
+
+    public void onConnectionLost(final Throwable cause) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.CONNECTED) {
+                    backOff(cause);
+                }
+            }
+        });
+    }
+
+    /**
+     * To be called when the platform reports that a network is available, skips any pending backoff.
+     */
+    public void onNetworkAvailable() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.BACKING_OFF) {
+                    mNetworkRestoredAt = System.nanoTime();
+                    cancelRetry();
+                    mBackoff.reset();
+                    startConnecting();
+                }
+            }
+        });
+    }
+
+    /**
+     * To be called when the network the connection went through is gone. A connection
+     * established over it may be half-open and only time out at the next keepalive, so
+     * it is opened again right away, as is any pending backoff skipped.
+     */
+    public void onNetworkChanged() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.CONNECTED || mState == State.CONNECTING) {
+                    // Outcomes of the attempt in flight don't matter anymore
+                    mAttempt++;
+                    try {
+                        mDriver.disconnect();
+                    } catch (RuntimeException ignored) {
+                    }
+                } else if (mState != State.BACKING_OFF) {
+                    // Not wanted, nothing to do
+                    return;
+                }
+                mNetworkRestoredAt = System.nanoTime();
+                cancelRetry();
+                mBackoff.reset();
+                startConnecting();
+            }
+        });
+    }
+
+    public State getState() {
+        return mPublishedState;
+    }
+
+    /**
+     * @return true between connect() or reconnect() and disconnect(), whatever the current state
+     */
+    public boolean isConnectionWanted() {
+        return mWanted;
+    }
+
+    /**
+     * @return the time between the last network restoration and the following
+     * successful connection in milliseconds, or -1 if it never happened
+     */
+    public long getLastRecoveryTimeMs() {
+        return mLastRecoveryMs;
+    }
+
+    /**
+     * @return how many connect requests were merged into an ongoing connection
+     */
+    public long getCollapsedRequestCount() {
+        return mCollapsedRequests;
+    }
+
+    public void addStateListener(StateListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeStateListener(StateListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void requestConnect(boolean force) {
+        switch (mState) {
+            case CONNECTED:
+                if (!force) {
+                    mCollapsedRequests++;
+                    return;
+                }
+                close();
+                startConnecting();
+                break;
+            case CONNECTING:
+                mCollapsedRequests++;
+                break;
+            case BACKING_OFF:
+                cancelRetry();
+                startConnecting();
+                break;
+            default:
+                startConnecting();
+        }
+    }
+
+    private void startConnecting() {
+        final int attempt = ++mAttempt;
+        transition(State.CONNECTING, null);
+        try {
+            mDriver.connect(attempt);
+        } catch (RuntimeException e) {
+            backOff(e);
+        }
+    }
+
+    private void backOff(Throwable cause) {
+        // Forget about the attempt that failed
+        mAttempt++;
+        if (!mWanted) {
+            transition(State.DISCONNECTED, cause);
+            return;
+        }
+
+        transition(State.BACKING_OFF, cause);
+        cancelRetry();
+        mRetry = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mRetry = null;
+                if (mState == State.BACKING_OFF) {
+                    startConnecting();
+                }
+            }
+        }, mBackoff.nextDelayMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private void close() {
+        cancelRetry();
+        mBackoff.reset();
+        mNetworkRestoredAt = -1;
+
+        if (mState == State.CONNECTED || mState == State.CONNECTING) {
+            // Outcomes of the attempt in flight don't matter anymore
+            mAttempt++;
+            transition(State.CLOSING, null);
+            try {
+                mDriver.disconnect();
+            } catch (RuntimeException ignored) {
+            }
+        }
+        if (mState != State.DISCONNECTED) {
+            transition(State.DISCONNECTED, null);
+        }
+    }
+
+    private void cancelRetry() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+    }
+
+    private void transition(State to, Throwable cause) {
+        State from = mState;
+        if (from == to) {
+            return;
+        }
+        mState = to;
+        mPublishedState = to;
+        for (StateListener listener : mListeners) {
+            listener.onStateChanged(from, to, cause);
+        }
+    }
+
+    private void post(Runnable r) {
+        try {
+            mExecutor.execute(r);
+        } catch (RejectedExecutionException ignored) {
+            // Shut down
+        }
+    }
+}
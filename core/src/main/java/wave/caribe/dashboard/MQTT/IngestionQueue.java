@@ -0,0 +1,142 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.util.HashMap;
+
+import wave.caribe.dashboard.model.Measurement;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Bounded queue between the MQTT callback thread and the map.
+ *
+ * Entries are kept in arrival order in a fixed-size ring. A value for a uid that
+ * is already queued replaces the pending one in place, so while the UI is behind
+ * only the latest measurement per sensor is kept. When the ring is full the oldest
+ * entry is dropped and counted. offer() never waits for the consumer.
+ *
+ * Measurements are copied into slots preallocated by the queue, so callers can
+ * keep reusing their own buffers and a warmed-up queue does not allocate.
+ *
+ * There must be a single consumer calling drain().
+ */
+public class IngestionQueue {
+
+    public interface Consumer {
+        void accept(String uid, Measurement measurement);
+    }
+
+    private final int mCapacity;
+    private final String[] mUids;
+    private final Measurement[] mValues;
+    private final HashMap<String, Integer> mSlots;
+
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private long mOffered = 0;
+    private long mCoalesced = 0;
+    private long mDropped = 0;
+
+    // Scratch space for drain(), so that the consumer runs without holding the lock
+    private final String[] mDrainUids;
+    private final Measurement[] mDrainValues;
+
+    public IngestionQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+        mCapacity = capacity;
+        mUids = new String[capacity];
+        mValues = new Measurement[capacity];
+        mSlots = new HashMap<>(capacity * 2);
+        mDrainUids = new String[capacity];
+        mDrainValues = new Measurement[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mValues[i] = new Measurement();
+            mDrainValues[i] = new Measurement();
+        }
+    }
+
+    /**
+     * Queues a copy of the measurement, replacing any measurement still pending for the uid.
+     */
+    public synchronized void offer(String uid, Measurement measurement) {
+        mOffered++;
+
+        Integer slot = mSlots.get(uid);
+        if (slot != null) {
+            mValues[slot].copyFrom(measurement);
+            mCoalesced++;
+            return;
+        }
+
+        if (mSize == mCapacity) {
+            // Overflow : make room by forgetting the oldest entry
+            mSlots.remove(mUids[mHead]);
+            mUids[mHead] = null;
+            mHead = (mHead + 1) % mCapacity;
+            mSize--;
+            mDropped++;
+        }
+
+        int tail = (mHead + mSize) % mCapacity;
+        mUids[tail] = uid;
+        mValues[tail].copyFrom(measurement);
+        mSlots.put(uid, tail);
+        mSize++;
+    }
+
+    /**
+     * Hands at most max queued entries to the consumer, oldest first.
+     * The measurements passed to the consumer are only valid during the call.
+     *
+     * @return the number of entries consumed
+     */
+    public int drain(Consumer consumer, int max) {
+        int count;
+
+        synchronized (this) {
+            count = Math.min(mSize, max);
+            for (int i = 0; i < count; i++) {
+                mDrainUids[i] = mUids[mHead];
+                mDrainValues[i].copyFrom(mValues[mHead]);
+                mSlots.remove(mUids[mHead]);
+                mUids[mHead] = null;
+                mHead = (mHead + 1) % mCapacity;
+            }
+            mSize -= count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            consumer.accept(mDrainUids[i], mDrainValues[i]);
+            mDrainUids[i] = null;
+        }
+
+        return count;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mUids[i] = null;
+        }
+        mSlots.clear();
+        mHead = 0;
+        mSize = 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,326 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import wave.caribe.dashboard.model.Measurement;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Decodes measurement messages straight from the MQTT payload bytes.
+ *
+ * A measurement payload is a JSON array of samples. Nested arrays are flattened,
+ * up to MAX_DEPTH levels, quoted numbers are accepted, and null or non numeric
+ * strings become NaN.
+ * The samples are written into a Measurement owned by the decoder, which is
+ * overwritten by the next call : this class is meant to be used from the MQTT
+ * callback thread only.
+ */
+public class MeasurementDecoder {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Exact powers of ten, used by the fast path of the number parser
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private static final int MAX_CACHED_TOPICS = 4096;
+
+    // Arrays are read recursively, deeper payloads are rejected before the stack overflows
+    private static final int MAX_DEPTH = 32;
+
+    private final Measurement mBuffer = new Measurement();
+    private final HashMap<String, String> mUidByTopic = new HashMap<>();
+
+    private byte[] mInput;
+    private int mPos;
+    private int mEnd;
+
+    /**
+     * Returns the sensor uid of a "measurement/<uid>" topic.
+     * Uids are cached per topic so that known sensors cost a single map lookup.
+     */
+    public String uidForTopic(String topic) {
+        String uid = mUidByTopic.get(topic);
+        if (uid == null) {
+            int start = topic.indexOf('/') + 1;
+            int end = topic.indexOf('/', start);
+            uid = topic.substring(start, end < 0 ? topic.length() : end);
+
+            if (mUidByTopic.size() >= MAX_CACHED_TOPICS) {
+                mUidByTopic.clear();
+            }
+            mUidByTopic.put(topic, uid);
+        }
+        return uid;
+    }
+
+    /**
+     * Decodes a payload into the decoder's reusable Measurement.
+     *
+     * @throws IllegalArgumentException if the payload is not a JSON array of samples
+     */
+    public Measurement decode(byte[] payload, long timestamp) {
+        return decode(payload, 0, payload.length, timestamp);
+    }
+
+    public Measurement decode(byte[] payload, int offset, int length, long timestamp) {
+        mInput = payload;
+        mPos = offset;
+        mEnd = offset + length;
+        mBuffer.reset(timestamp);
+
+        try {
+            skipWhitespace();
+            expect('[');
+            readArray(1);
+            skipWhitespace();
+            if (mPos != mEnd) {
+                throw error("Trailing data");
+            }
+        } finally {
+            mInput = null;
+        }
+
+        return mBuffer;
+    }
+
+    // Called after the opening bracket, consumes up to and including the closing one
+    private void readArray(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw error("Too deeply nested");
+        }
+        skipWhitespace();
+        if (peek() == ']') {
+            mPos++;
+            return;
+        }
+
+        while (true) {
+            readValue(depth);
+            skipWhitespace();
+            byte b = next();
+            if (b == ']') {
+                return;
+            }
+            if (b != ',') {
+                throw error("Expected ',' or ']'");
+            }
+        }
+    }
+
+    private void readValue(int depth) {
+        skipWhitespace();
+        byte b = peek();
+        switch (b) {
+            case '[':
+                mPos++;
+                readArray(depth + 1);
+                break;
+            case '"':
+                mPos++;
+                readQuoted();
+                break;
+            case 'n':
+                expectLiteral("null");
+                mBuffer.add(Double.NaN);
+                break;
+            case 't':
+                expectLiteral("true");
+                mBuffer.add(1);
+                break;
+            case 'f':
+                expectLiteral("false");
+                mBuffer.add(0);
+                break;
+            default:
+                int end = scanNumber(mPos);
+                if (end == mPos) {
+                    throw error("Unexpected character '" + (char) b + "'");
+                }
+                mBuffer.add(parseNumber(mPos, end));
+                mPos = end;
+        }
+    }
+
+    private void readQuoted() {
+        int start = mPos;
+        while (mPos < mEnd && mInput[mPos] != '"') {
+            if (mInput[mPos] == '\\') {
+                mPos++;
+            }
+            mPos++;
+        }
+        if (mPos >= mEnd) {
+            throw error("Unterminated string");
+        }
+        int end = mPos++;
+
+        if (start < end && scanNumber(start) == end) {
+            mBuffer.add(parseNumber(start, end));
+        } else {
+            mBuffer.add(Double.NaN);
+        }
+    }
+
+    // Returns the end of the JSON number starting at start, or start if there is none
+    private int scanNumber(int start) {
+        int i = start;
+        if (i < mEnd && (mInput[i] == '-' || mInput[i] == '+')) {
+            i++;
+        }
+        int digits = i;
+        while (i < mEnd && isDigit(mInput[i])) {
+            i++;
+        }
+        if (i < mEnd && mInput[i] == '.') {
+            i++;
+            while (i < mEnd && isDigit(mInput[i])) {
+                i++;
+            }
+        }
+        if (i == digits || (i == digits + 1 && mInput[digits] == '.')) {
+            return start;
+        }
+        if (i < mEnd && (mInput[i] == 'e' || mInput[i] == 'E')) {
+            int exponent = i + 1;
+            if (exponent < mEnd && (mInput[exponent] == '-' || mInput[exponent] == '+')) {
+                exponent++;
+            }
+            int exponentDigits = exponent;
+            while (exponent < mEnd && isDigit(mInput[exponent])) {
+                exponent++;
+            }
+            if (exponent > exponentDigits) {
+                i = exponent;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Parses a number already validated by scanNumber().
+     * Numbers with at most 15 significant digits and a small exponent are computed
+     * exactly with a single multiplication or division, anything else falls back
+     * to Double.parseDouble().
+     */
+    private double parseNumber(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (mInput[i] == '-' || mInput[i] == '+') {
+            negative = mInput[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+
+        for (; i < end; i++) {
+            byte b = mInput[i];
+            if (b == '.') {
+                fraction = true;
+            } else if (isDigit(b)) {
+                if (digits > 0 || b != '0') {
+                    digits++;
+                }
+                if (digits > MAX_FAST_DIGITS) {
+                    return slowParse(start, end);
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    scale--;
+                }
+            } else {
+                break;
+            }
+        }
+
+        if (i < end) {
+            // Exponent part
+            i++;
+            boolean negativeExponent = false;
+            if (mInput[i] == '-' || mInput[i] == '+') {
+                negativeExponent = mInput[i] == '-';
+                i++;
+            }
+            int exponent = 0;
+            for (; i < end; i++) {
+                exponent = exponent * 10 + (mInput[i] - '0');
+                if (exponent > 400) {
+                    return slowParse(start, end);
+                }
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+
+        double value = (double) mantissa;
+        if (scale < 0) {
+            if (-scale >= POWERS_OF_TEN.length) {
+                return slowParse(start, end);
+            }
+            value /= POWERS_OF_TEN[-scale];
+        } else if (scale > 0) {
+            if (scale >= POWERS_OF_TEN.length) {
+                return slowParse(start, end);
+            }
+            value *= POWERS_OF_TEN[scale];
+        }
+
+        return negative ? -value : value;
+    }
+
+    private double slowParse(int start, int end) {
+        return Double.parseDouble(new String(mInput, start, end - start, ASCII));
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next() != literal.charAt(i)) {
+                throw error("Expected " + literal);
+            }
+        }
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mEnd) {
+            byte b = mInput[mPos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+    private byte peek() {
+        if (mPos >= mEnd) {
+            throw error("Unexpected end of payload");
+        }
+        return mInput[mPos];
+    }
+
+    private byte next() {
+        byte b = peek();
+        mPos++;
+        return b;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private IllegalArgumentException error(String reason) {
+        return new IllegalArgumentException(reason + " at offset " + mPos + " of measurement payload");
+    }
+}
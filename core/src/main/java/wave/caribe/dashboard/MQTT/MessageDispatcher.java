@@ -0,0 +1,121 @@
+package wave.caribe.dashboard.MQTT;
+
+import wave.caribe.dashboard.metrics.Counter;
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Measurement;
+
+/**
+ * Caribe Wave Android App
+ *
+ * What happens to an incoming message before the app sees it : routing on its
+ * topic, decoding of measurements and the message metrics.
+ *
+ * Kept apart from MQTTClient, which only adds the Android side (preferences,
+ * connectivity, logging), so that the load test can run the very same path
+ * behind a plain Paho client.
+ *
+ * dispatch() must always be called from the same thread, the Paho callback thread.
+ */
+public class MessageDispatcher {
+
+    public interface Sink {
+        // The measurement is reused by the dispatcher, copy it to keep it after the call
+        void onMeasurement(String uid, Measurement measurement);
+        // Throws IllegalArgumentException if the payload is not a valid alert
+        void onAlert(String topic, byte[] payload);
+        // A message or a topic filter we can't handle, already counted
+        void onRejected(String topic, String reason);
+    }
+
+    // Messages by route, what they weigh and how long they take to decode
+    private static final Counter sMeasurementMessages = MetricsRegistry.getDefault().counter("mqtt.messages.measurement");
+    private static final Counter sAlertMessages = MetricsRegistry.getDefault().counter("mqtt.messages.alert");
+    private static final Counter sUnroutedMessages = MetricsRegistry.getDefault().counter("mqtt.messages.unrouted");
+    private static final Counter sMalformedMessages = MetricsRegistry.getDefault().counter("mqtt.messages.malformed");
+    private static final Counter sPayloadBytes = MetricsRegistry.getDefault().counter("mqtt.payload.bytes");
+    private static final Histogram sMeasurementDecode = MetricsRegistry.getDefault().histogram("mqtt.decode.measurement");
+
+    private final Sink mSink;
+    private final MeasurementDecoder mDecoder = new MeasurementDecoder();
+
+    // Replaced as a whole when the topics change
+    private volatile TopicRouter mRouter = new TopicRouter.Builder().build();
+
+    private final TopicRouter.Handler mAlertHandler = new TopicRouter.Handler() {
+        @Override
+        public void handle(String topic, byte[] payload) {
+            sAlertMessages.inc();
+            try {
+                mSink.onAlert(topic, payload);
+            } catch (IllegalArgumentException e) {
+                // Thrown out of the Paho callback, the message would never be acknowledged
+                // and a persistent session would redeliver it on every reconnection
+                sMalformedMessages.inc();
+                mSink.onRejected(topic, "Bad alert : " + e.getMessage());
+            }
+        }
+    };
+
+    private final TopicRouter.Handler mMeasurementHandler = new TopicRouter.Handler() {
+        @Override
+        public void handle(String topic, byte[] payload) {
+            sMeasurementMessages.inc();
+            long start = System.nanoTime();
+            String uid = mDecoder.uidForTopic(topic);
+            Measurement measurement;
+            try {
+                measurement = mDecoder.decode(payload, System.currentTimeMillis());
+                sMeasurementDecode.recordSince(start);
+            } catch (IllegalArgumentException e) {
+                // Don't let a malformed message tear down the connection
+                sMalformedMessages.inc();
+                mSink.onRejected(topic, "Bad measurement for " + uid + " : " + e.getMessage());
+                return;
+            }
+            mSink.onMeasurement(uid, measurement);
+        }
+    };
+
+    public MessageDispatcher(Sink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Sets the topic filters of measurements and alerts, null for none. A bad
+     * filter is reported to the sink and left out, the other one still applies.
+     *
+     * This must be done before subscribing, a persistent session delivers the
+     * messages we missed right after the connection.
+     */
+    public void setRoutes(String measurementFilter, String alertFilter) {
+        TopicRouter.Builder router = new TopicRouter.Builder();
+        route(router, measurementFilter, mMeasurementHandler);
+        route(router, alertFilter, mAlertHandler);
+        mRouter = router.build();
+    }
+
+    private void route(TopicRouter.Builder router, String filter, TopicRouter.Handler handler) {
+        if (filter == null) {
+            return;
+        }
+        try {
+            router.route(filter, handler);
+        } catch (IllegalArgumentException e) {
+            mSink.onRejected(filter, "Bad topic filter : " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return false if no route matched the topic
+     */
+    public boolean dispatch(String topic, byte[] payload) throws Exception {
+        sPayloadBytes.add(payload.length);
+        if (mRouter.dispatch(topic, payload) == 0) {
+            sUnroutedMessages.inc();
+            mSink.onRejected(topic, "No handler for topic");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.io.File;
+import java.util.regex.Pattern;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Housekeeping for the MQTT session files.
+ *
+ * All sessions live under a single app-private directory, in which Paho keeps one
+ * sub directory per client id and server. Only the current one is worth keeping,
+ * the others hold in-flight messages of a broker we no longer talk to.
+ */
+class SessionPersistence {
+
+    // Directories created by the former per-connection temp dir scheme : "<millis>-<counter>"
+    private static final Pattern LEGACY_TEMP_DIR = Pattern.compile("\\d{13}-\\d+");
+
+    private SessionPersistence() {}
+
+    /**
+     * Removes everything under root except the session of the given client and server.
+     */
+    static void compact(File root, String clientId, String serverURI) {
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            return;
+        }
+        String current = sessionKey(clientId, serverURI);
+        for (File entry : entries) {
+            if (!entry.getName().equals(current)) {
+                deleteRecursively(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the directories left in tmpDir by previous versions of the app.
+     *
+     * @return the number of directories removed
+     */
+    static int purgeLegacyTempDirs(File tmpDir) {
+        File[] entries = tmpDir.listFiles();
+        if (entries == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (File entry : entries) {
+            if (entry.isDirectory() && LEGACY_TEMP_DIR.matcher(entry.getName()).matches()) {
+                deleteRecursively(entry);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // Mirrors the directory name MqttDefaultFilePersistence derives from the client id and server
+    private static String sessionKey(String clientId, String serverURI) {
+        StringBuilder key = new StringBuilder();
+        appendSafe(key, clientId);
+        key.append('-');
+        appendSafe(key, serverURI);
+        return key.toString();
+    }
+
+    private static void appendSafe(StringBuilder key, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isJavaIdentifierPart(c) || c == '-') {
+                key.append(c);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
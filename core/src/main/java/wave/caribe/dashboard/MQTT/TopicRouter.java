@@ -0,0 +1,205 @@
+package wave.caribe.dashboard.MQTT;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Dispatches incoming messages to the handlers registered for matching MQTT topic filters.
+ *
+ * The filters are compiled once into a trie of topic levels, supporting the '+'
+ * (single level) and '#' (multi level) wildcards. Children of a level are kept in
+ * a small open-addressing table and looked up by hashing the level in place, so
+ * matching a topic costs O(levels) and does not allocate.
+ *
+ * A router is immutable once built, build a new one when the subscriptions change.
+ */
+public class TopicRouter {
+
+    public interface Handler {
+        void handle(String topic, byte[] payload) throws Exception;
+    }
+
+    private final Node mRoot;
+
+    private TopicRouter(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * Hands the message to every handler whose filter matches the topic.
+     *
+     * @return the number of handlers invoked
+     */
+    public int dispatch(String topic, byte[] payload) throws Exception {
+        return match(mRoot, topic, 0, payload);
+    }
+
+    private static int match(Node node, String topic, int start, byte[] payload) throws Exception {
+        int count = 0;
+
+        // Wildcards never match topics starting with '$' at the first level
+        boolean wildcards = start > 0 || topic.isEmpty() || topic.charAt(0) != '$';
+
+        // '#' also matches its parent level, so it fires before checking for the end
+        if (wildcards && node.multiLevel != null) {
+            count += invoke(node.multiLevel.handlers, topic, payload);
+        }
+
+        if (start > topic.length()) {
+            return count + invoke(node.handlers, topic, payload);
+        }
+
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+
+        Node exact = node.child(topic, start, end);
+        if (exact != null) {
+            count += match(exact, topic, end + 1, payload);
+        }
+        if (wildcards && node.singleLevel != null) {
+            count += match(node.singleLevel, topic, end + 1, payload);
+        }
+
+        return count;
+    }
+
+    private static int invoke(Handler[] handlers, String topic, byte[] payload) throws Exception {
+        for (Handler handler : handlers) {
+            handler.handle(topic, payload);
+        }
+        return handlers.length;
+    }
+
+    // Same value as String.hashCode() of topic.substring(start, end)
+    private static int hash(String topic, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + topic.charAt(i);
+        }
+        return h;
+    }
+
+    private static final class Node {
+
+        private static final Handler[] NO_HANDLERS = new Handler[0];
+
+        // Build time structure
+        private final Map<String, Node> pending = new HashMap<>();
+        private final ArrayList<Handler> pendingHandlers = new ArrayList<>();
+
+        // Match time structure, filled by freeze()
+        private String[] keys;
+        private Node[] children;
+        private int mask;
+        private Handler[] handlers = NO_HANDLERS;
+        private Node singleLevel;
+        private Node multiLevel;
+
+        private Node child(String topic, int start, int end) {
+            if (keys == null) {
+                return null;
+            }
+            int length = end - start;
+            int i = hash(topic, start, end) & mask;
+            while (keys[i] != null) {
+                if (keys[i].length() == length && topic.regionMatches(start, keys[i], 0, length)) {
+                    return children[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        private void freeze() {
+            handlers = pendingHandlers.toArray(new Handler[pendingHandlers.size()]);
+            pendingHandlers.clear();
+
+            if (!pending.isEmpty()) {
+                // Keep the table at most half full
+                int size = Integer.highestOneBit(pending.size() * 2 - 1) << 1;
+                keys = new String[size];
+                children = new Node[size];
+                mask = size - 1;
+                for (Map.Entry<String, Node> entry : pending.entrySet()) {
+                    int i = entry.getKey().hashCode() & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = entry.getKey();
+                    children[i] = entry.getValue();
+                    entry.getValue().freeze();
+                }
+                pending.clear();
+            }
+            if (singleLevel != null) {
+                singleLevel.freeze();
+            }
+            if (multiLevel != null) {
+                multiLevel.freeze();
+            }
+        }
+    }
+
+    public static class Builder {
+
+        private final Node mRoot = new Node();
+        private boolean mBuilt = false;
+
+        /**
+         * Registers a handler for a topic filter, such as "measurement/#" or "sensor/+/status".
+         *
+         * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+         */
+        public Builder route(String filter, Handler handler) {
+            if (mBuilt) {
+                throw new IllegalStateException("Router already built");
+            }
+            if (filter == null || filter.isEmpty()) {
+                throw new IllegalArgumentException("Empty topic filter");
+            }
+
+            Node node = mRoot;
+            String[] levels = filter.split("/", -1);
+            for (int i = 0; i < levels.length; i++) {
+                String level = levels[i];
+                if (level.equals("#")) {
+                    if (i != levels.length - 1) {
+                        throw new IllegalArgumentException("'#' must be the last level of " + filter);
+                    }
+                    if (node.multiLevel == null) {
+                        node.multiLevel = new Node();
+                    }
+                    node = node.multiLevel;
+                } else if (level.equals("+")) {
+                    if (node.singleLevel == null) {
+                        node.singleLevel = new Node();
+                    }
+                    node = node.singleLevel;
+                } else if (level.contains("#") || level.contains("+")) {
+                    throw new IllegalArgumentException("Wildcards must occupy a whole level in " + filter);
+                } else {
+                    Node child = node.pending.get(level);
+                    if (child == null) {
+                        child = new Node();
+                        node.pending.put(level, child);
+                    }
+                    node = child;
+                }
+            }
+
+            node.pendingHandlers.add(handler);
+            return this;
+        }
+
+        public TopicRouter build() {
+            mBuilt = true;
+            mRoot.freeze();
+            return new TopicRouter(mRoot);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package wave.caribe.dashboard.map;
+
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.state.DashboardState;
+
+/**
+ * Caribe Wave Android App
+ *
+ * State of every sensor of a catalogue as drawn on the map, by sensor id.
+ *
+ * The DashboardStore holds the state of the sensors, this is the copy the markers
+ * were last reconciled with. Sensors are drawn as clusters, the markers themselves
+ * belong to MarkerReconciler.
+ *
+ * A sensor id is the position of the sensor in the catalogue, so ids are dense
+ * and the state lives in plain arrays. Resolving a uid is a single hash lookup
+ * in the catalogue index, whatever the number of sensors. When several places
+ * report the same uid, they all get the events : see nextIdOf().
+ *
+ * Not thread safe, meant to be used from the UI thread only.
+ */
+public class SensorRegistry {
+
+    private final SensorCatalogue mCatalogue;
+    private final byte[] mStates;
+
+    public SensorRegistry(DashboardState state) {
+        mCatalogue = state.getCatalogue();
+        mStates = new byte[state.size()];
+        for (int id = 0; id < mStates.length; id++) {
+            mStates[id] = (byte) state.getState(id);
+        }
+    }
+
+    public SensorCatalogue getCatalogue() {
+        return mCatalogue;
+    }
+
+    public int size() {
+        return mStates.length;
+    }
+
+    /**
+     * @return the id of the sensor with this uid, or -1
+     */
+    public int idOf(String uid) {
+        return mCatalogue.indexOf(uid);
+    }
+
+    /**
+     * @return the id of the next sensor with the same uid, or -1
+     */
+    public int nextIdOf(int id) {
+        return mCatalogue.nextIndexOf(id);
+    }
+
+    public Sensor getSensor(int id) {
+        return mCatalogue.getSensors().get(id);
+    }
+
+    public int getState(int id) {
+        return mStates[id];
+    }
+
+    public void setState(int id, int state) {
+        mStates[id] = (byte) state;
+    }
+}
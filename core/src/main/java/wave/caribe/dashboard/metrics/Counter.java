@@ -0,0 +1,28 @@
+package wave.caribe.dashboard.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Monotonic count, safe to increment from any thread without allocating.
+ */
+public final class Counter {
+
+    private final AtomicLong mValue = new AtomicLong();
+
+    Counter() {
+    }
+
+    public void inc() {
+        mValue.incrementAndGet();
+    }
+
+    public void add(long n) {
+        mValue.addAndGet(n);
+    }
+
+    public long get() {
+        return mValue.get();
+    }
+}
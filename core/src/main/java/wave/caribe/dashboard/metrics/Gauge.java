@@ -0,0 +1,10 @@
+package wave.caribe.dashboard.metrics;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Value read when the metrics are, typically a counter kept by the measured class.
+ */
+public interface Gauge {
+    long get();
+}
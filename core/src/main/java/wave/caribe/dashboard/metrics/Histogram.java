@@ -0,0 +1,87 @@
+package wave.caribe.dashboard.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Distribution of durations in microseconds, safe to record from any thread
+ * without allocating.
+ *
+ * Buckets are fixed powers of two : bucket i holds the values up to 2^i us, the
+ * last one everything above. Percentiles are thus given as the upper bound of
+ * their bucket, at most twice the actual value, which is enough to tell 5 ms
+ * from 50 ms. The maximum is exact.
+ */
+public final class Histogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram() {
+    }
+
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        // Smallest i with value <= 2^i
+        int bucket = value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since a System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count > 0 ? mSum.get() / count : 0;
+    }
+
+    /**
+     * @param p in [0, 1]
+     * @return the upper bound of the bucket holding the p-th percentile, 0 when empty
+     */
+    public long getPercentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+}
@@ -0,0 +1,97 @@
+package wave.caribe.dashboard.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Named counters, gauges and latency histograms of the whole process.
+ *
+ * Metrics are looked up once, typically into a static field, and then updated
+ * from hot paths without locking nor allocating. Names are dotted, the first part
+ * being the area (mqtt, http, map, ...). format() gives a text snapshot of them
+ * all, for the diagnostics screen and its exports.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final Map<String, Counter> mCounters = new TreeMap<>();
+    private final Map<String, Gauge> mGauges = new TreeMap<>();
+    private final Map<String, Histogram> mHistograms = new TreeMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing the one with the same name if any,
+     * e.g. that of a previous instance of the measured class.
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Unregisters the gauge if it is still this one.
+     */
+    public synchronized void removeGauge(String name, Gauge gauge) {
+        if (mGauges.get(name) == gauge) {
+            mGauges.remove(name);
+        }
+    }
+
+    /**
+     * @return one line per metric, sorted by name, latencies in milliseconds
+     */
+    public String format() {
+        Map<String, Counter> counters;
+        Map<String, Gauge> gauges;
+        Map<String, Histogram> histograms;
+        synchronized (this) {
+            counters = new TreeMap<>(mCounters);
+            gauges = new TreeMap<>(mGauges);
+            histograms = new TreeMap<>(mHistograms);
+        }
+
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            out.append(String.format(Locale.US, "%-32s %d%n", entry.getKey(), entry.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            out.append(String.format(Locale.US, "%-32s %d%n", entry.getKey(), entry.getValue().get()));
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.append(String.format(Locale.US, "%-32s n=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f ms%n",
+                    entry.getKey(), histogram.getCount(), millis(histogram.getMean()),
+                    millis(histogram.getPercentile(0.5)), millis(histogram.getPercentile(0.9)),
+                    millis(histogram.getPercentile(0.99)), millis(histogram.getMax())));
+        }
+        return out.toString();
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,187 @@
+package wave.caribe.dashboard.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Groups of nearby sensors for every zoom level, precomputed.
+ *
+ * Sensors are projected (Web Mercator) on a grid whose cells are CELL_SIZE_PX wide
+ * on screen, and sensors falling in the same cell make a cluster. Each zoom level
+ * halves the cells of the previous one, so the grid is hierarchical : a cluster is
+ * always contained in one cluster of every lower level. Beyond MAX_LEVEL, the
+ * clusters of MAX_LEVEL are used.
+ *
+ * A cluster is identified across levels by getKey() : two clusters with the same
+ * key have the same sensors.
+ *
+ * Levels only depend on the cells of the sensors, big lists build them in
+ * parallel, one task per level.
+ */
+public final class ClusterIndex {
+
+    public static final int MAX_LEVEL = 16;
+    private static final double CELL_SIZE_PX = 64;
+    private static final double TILE_SIZE_PX = 256;
+    private static final double MAX_MERCATOR_LAT = 85.05112878;
+
+    // Below this, a level is built faster than a task is handed over
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private static ForkJoinPool sPool;
+
+    private static class Level {
+        int count;
+        // By sensor id
+        int[] clusterOf;
+        // By cluster
+        int[] size;
+        int[] first;
+        double[] lat;
+        double[] lon;
+    }
+
+    private final Level[] levels = new Level[MAX_LEVEL + 1];
+
+    ClusterIndex(final List<Sensor> sensors) {
+        int n = sensors.size();
+        double cells = Math.scalb(TILE_SIZE_PX / CELL_SIZE_PX, MAX_LEVEL);
+        final int[] cellX = new int[n];
+        final int[] cellY = new int[n];
+        for (int id = 0; id < n; id++) {
+            Sensor sensor = sensors.get(id);
+            cellX[id] = (int) Math.min(cells - 1, Math.max(0, mercatorX(sensor.getLongitude()) * cells));
+            cellY[id] = (int) Math.min(cells - 1, Math.max(0, mercatorY(sensor.getLatitude()) * cells));
+        }
+
+        if (n < PARALLEL_THRESHOLD) {
+            for (int z = 0; z <= MAX_LEVEL; z++) {
+                levels[z] = buildLevel(z, sensors, cellX, cellY);
+            }
+            return;
+        }
+
+        List<Callable<Level>> tasks = new ArrayList<>();
+        for (int z = 0; z <= MAX_LEVEL; z++) {
+            final int level = z;
+            tasks.add(new Callable<Level>() {
+                @Override
+                public Level call() {
+                    return buildLevel(level, sensors, cellX, cellY);
+                }
+            });
+        }
+        List<Future<Level>> results = pool().invokeAll(tasks);
+        for (int z = 0; z <= MAX_LEVEL; z++) {
+            try {
+                levels[z] = results.get(z).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while building the clusters", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Could not build the clusters", e.getCause());
+            }
+        }
+    }
+
+    private static Level buildLevel(int z, List<Sensor> sensors, int[] cellX, int[] cellY) {
+        int n = sensors.size();
+        int shift = MAX_LEVEL - z;
+        Level level = new Level();
+        level.clusterOf = new int[n];
+        HashMap<Long, Integer> clusters = new HashMap<>();
+
+        for (int id = 0; id < n; id++) {
+            long cell = ((long) (cellX[id] >> shift) << 32) | (cellY[id] >> shift);
+            Integer cluster = clusters.get(cell);
+            if (cluster == null) {
+                cluster = clusters.size();
+                clusters.put(cell, cluster);
+            }
+            level.clusterOf[id] = cluster;
+        }
+
+        level.count = clusters.size();
+        level.size = new int[level.count];
+        level.first = new int[level.count];
+        level.lat = new double[level.count];
+        level.lon = new double[level.count];
+        // Backwards, so that first ends up being the smallest id
+        for (int id = n - 1; id >= 0; id--) {
+            int cluster = level.clusterOf[id];
+            Sensor sensor = sensors.get(id);
+            level.size[cluster]++;
+            level.first[cluster] = id;
+            level.lat[cluster] += sensor.getLatitude();
+            level.lon[cluster] += sensor.getLongitude();
+        }
+        for (int cluster = 0; cluster < level.count; cluster++) {
+            level.lat[cluster] /= level.size[cluster];
+            level.lon[cluster] /= level.size[cluster];
+        }
+        return level;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    /**
+     * @return the level to use for a map zoom
+     */
+    public static int levelFor(double zoom) {
+        return (int) Math.max(0, Math.min(MAX_LEVEL, Math.floor(zoom)));
+    }
+
+    public int getClusterCount(int level) {
+        return levels[level].count;
+    }
+
+    public int getCluster(int level, int sensorId) {
+        return levels[level].clusterOf[sensorId];
+    }
+
+    public int getSize(int level, int cluster) {
+        return levels[level].size[cluster];
+    }
+
+    /**
+     * @return the smallest sensor id of the cluster, the sensor itself for a single sensor
+     */
+    public int getFirstSensor(int level, int cluster) {
+        return levels[level].first[cluster];
+    }
+
+    // Centroid of the sensors of the cluster
+    public double getLatitude(int level, int cluster) {
+        return levels[level].lat[cluster];
+    }
+
+    public double getLongitude(int level, int cluster) {
+        return levels[level].lon[cluster];
+    }
+
+    public long getKey(int level, int cluster) {
+        // Clusters sharing a sensor are nested, so they are equal when they have the same size
+        return ((long) getFirstSensor(level, cluster) << 32) | getSize(level, cluster);
+    }
+
+    private static double mercatorX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    private static double mercatorY(double lat) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_MERCATOR_LAT, Math.min(MAX_MERCATOR_LAT, lat))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+}
@@ -0,0 +1,71 @@
+package wave.caribe.dashboard.model;
+
+/**
+ * Caribe Wave Android App
+ *
+ * A decoded measurement : the samples of one MQTT message and the time it was received.
+ *
+ * Instances are meant to be reused, the sample buffer only grows when a message
+ * carries more samples than it has ever held.
+ */
+public class Measurement {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long mTimestamp;
+    private double[] mSamples;
+    private int mCount;
+
+    public Measurement() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Measurement(int capacity) {
+        mSamples = new double[Math.max(1, capacity)];
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public double getSample(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Sample " + index + " of " + mCount);
+        }
+        return mSamples[index];
+    }
+
+    /**
+     * The backing sample buffer, only the first getCount() values are meaningful.
+     */
+    public double[] getSamples() {
+        return mSamples;
+    }
+
+    public void reset(long timestamp) {
+        mTimestamp = timestamp;
+        mCount = 0;
+    }
+
+    public void add(double sample) {
+        if (mCount == mSamples.length) {
+            double[] grown = new double[mSamples.length * 2];
+            System.arraycopy(mSamples, 0, grown, 0, mCount);
+            mSamples = grown;
+        }
+        mSamples[mCount++] = sample;
+    }
+
+    public void copyFrom(Measurement other) {
+        if (mSamples.length < other.mCount) {
+            mSamples = new double[other.mSamples.length];
+        }
+        System.arraycopy(other.mSamples, 0, mSamples, 0, other.mCount);
+        mCount = other.mCount;
+        mTimestamp = other.mTimestamp;
+    }
+}
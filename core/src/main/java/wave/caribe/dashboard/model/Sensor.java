@@ -1,8 +1,5 @@
 package wave.caribe.dashboard.model;
 
-
-import com.mapbox.mapboxsdk.geometry.LatLng;
-
 /**
  * caribe-android-dashboard
  * Created by tchap on 15/03/16.
@@ -11,16 +8,22 @@ public class Sensor {
 
     private final String uid;
     private final String name;
-    private final LatLng coords;
+    private final double latitude;
+    private final double longitude;
 
-    public Sensor(String uid, String name, LatLng coords) {
+    public Sensor(String uid, String name, double latitude, double longitude) {
         this.uid = uid;
         this.name = name;
-        this.coords = coords;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public double getLatitude() {
+        return this.latitude;
     }
 
-    public LatLng getLatLng() {
-        return this.coords;
+    public double getLongitude() {
+        return this.longitude;
     }
 
     public String getName() {
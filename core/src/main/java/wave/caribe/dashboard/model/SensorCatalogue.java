@@ -0,0 +1,113 @@
+package wave.caribe.dashboard.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Immutable, ready to render list of sensors : the sensors themselves, the bounds
+ * to fit the map to, the positions of each sensor uid and the clusters of sensors
+ * at each zoom level.
+ *
+ * Several places may report the same uid, they all get its events : indexOf()
+ * gives the first one and nextIndexOf() links each one to the next.
+ *
+ * Meant to be built off the UI thread. The clusters are where the time goes, see
+ * ClusterIndex for how big lists are split across the cores.
+ */
+public final class SensorCatalogue {
+
+    public static final SensorCatalogue EMPTY = build(Collections.<Sensor>emptyList());
+
+    private final List<Sensor> sensors;
+    private final Map<String, Integer> index;
+    // By position, the next position with the same uid or -1
+    private final int[] nextSameUid;
+    private final ClusterIndex clusters;
+    private final double south;
+    private final double west;
+    private final double north;
+    private final double east;
+
+    private SensorCatalogue(List<Sensor> sensors) {
+        this.sensors = sensors;
+        double south = Double.POSITIVE_INFINITY;
+        double west = Double.POSITIVE_INFINITY;
+        double north = Double.NEGATIVE_INFINITY;
+        double east = Double.NEGATIVE_INFINITY;
+        HashMap<String, Integer> index = new HashMap<>(Math.max(16, sensors.size() * 4 / 3 + 1));
+        int[] nextSameUid = new int[sensors.size()];
+        // Backwards, so that the index ends up with the first position of each uid
+        for (int i = sensors.size() - 1; i >= 0; i--) {
+            Sensor sensor = sensors.get(i);
+            south = Math.min(south, sensor.getLatitude());
+            north = Math.max(north, sensor.getLatitude());
+            west = Math.min(west, sensor.getLongitude());
+            east = Math.max(east, sensor.getLongitude());
+            Integer next = sensor.hasUid() ? index.put(sensor.getUid(), i) : null;
+            nextSameUid[i] = next != null ? next : -1;
+        }
+        this.index = Collections.unmodifiableMap(index);
+        this.nextSameUid = nextSameUid;
+        this.clusters = new ClusterIndex(sensors);
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+    }
+
+    public static SensorCatalogue build(List<Sensor> sensors) {
+        return new SensorCatalogue(Collections.unmodifiableList(new ArrayList<>(sensors)));
+    }
+    public List<Sensor> getSensors() {
+        return sensors;
+    }
+
+    public int size() {
+        return sensors.size();
+    }
+
+    public boolean isEmpty() {
+        return sensors.isEmpty();
+    }
+
+    /**
+     * @return the position of the first sensor with this uid, or -1
+     */
+    public int indexOf(String uid) {
+        Integer position = index.get(uid);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * @return the position of the next sensor with the same uid as the one at this position, or -1
+     */
+    public int nextIndexOf(int position) {
+        return nextSameUid[position];
+    }
+
+    public ClusterIndex getClusters() {
+        return clusters;
+    }
+
+    // Bounds of all the sensors, meaningless when empty
+    public double getSouth() {
+        return south;
+    }
+
+    public double getWest() {
+        return west;
+    }
+
+    public double getNorth() {
+        return north;
+    }
+
+    public double getEast() {
+        return east;
+    }
+}
@@ -0,0 +1,123 @@
+package wave.caribe.dashboard.model;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Fixed-capacity ring buffer of the samples received for one sensor.
+ *
+ * Timestamps and values are kept in parallel primitive arrays, appending is O(1)
+ * and overwrites the oldest sample once full. Samples are expected in non-decreasing
+ * timestamp order, which lets range reads use a binary search.
+ *
+ * Not thread-safe, see TimeSeriesStore.
+ */
+public class SensorTimeSeries {
+
+    private final long[] mTimestamps;
+    private final double[] mValues;
+
+    private int mHead = 0;   // Oldest sample
+    private int mSize = 0;
+
+    public SensorTimeSeries(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive : " + capacity);
+        }
+        mTimestamps = new long[capacity];
+        mValues = new double[capacity];
+    }
+
+    public void append(long timestamp, double value) {
+        int capacity = mTimestamps.length;
+        int tail = mHead + mSize;
+        if (tail >= capacity) {
+            tail -= capacity;
+        }
+        mTimestamps[tail] = timestamp;
+        mValues[tail] = value;
+
+        if (mSize < capacity) {
+            mSize++;
+        } else {
+            mHead = mHead + 1 == capacity ? 0 : mHead + 1;
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * @return the timestamp of the latest sample, or -1 if there is none
+     */
+    public long lastTimestamp() {
+        return mSize == 0 ? -1 : mTimestamps[index(mSize - 1)];
+    }
+
+    /**
+     * Copies the latest samples, oldest first, into the given arrays.
+     *
+     * @return the number of samples copied, at most n and the length of the arrays
+     */
+    public int last(int n, long[] timestamps, double[] values) {
+        int count = Math.min(Math.min(n, mSize), Math.min(timestamps.length, values.length));
+        return copy(mSize - count, count, timestamps, values, 0);
+    }
+
+    /**
+     * Copies the samples with from <= timestamp < to, oldest first, into the given arrays.
+     *
+     * @return the number of samples copied, at most the length of the arrays
+     */
+    public int range(long from, long to, long[] timestamps, double[] values) {
+        int start = lowerBound(from);
+        int end = lowerBound(to);
+        int count = Math.min(end - start, Math.min(timestamps.length, values.length));
+        return copy(start, count, timestamps, values, 0);
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    // Position (0 = oldest) of the first sample with a timestamp >= t
+    private int lowerBound(long t) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimestamps[index(mid)] < t) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Copies count samples starting at position from, in at most two array copies
+    private int copy(int from, int count, long[] timestamps, double[] values, int offset) {
+        if (count <= 0) {
+            return 0;
+        }
+        int start = index(from);
+        int first = Math.min(count, mTimestamps.length - start);
+        System.arraycopy(mTimestamps, start, timestamps, offset, first);
+        System.arraycopy(mValues, start, values, offset, first);
+        if (first < count) {
+            System.arraycopy(mTimestamps, 0, timestamps, offset + first, count - first);
+            System.arraycopy(mValues, 0, values, offset + first, count - first);
+        }
+        return count;
+    }
+
+    private int index(int position) {
+        int i = mHead + position;
+        return i >= mTimestamps.length ? i - mTimestamps.length : i;
+    }
+}
@@ -0,0 +1,153 @@
+package wave.caribe.dashboard.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Recent samples of every sensor, keyed by uid.
+ *
+ * Each sensor gets a SensorTimeSeries of samplesPerSensor samples (16 bytes each).
+ * The total sample budget caps how many sensors are tracked at once : past that,
+ * the sensor that was least recently updated or read is forgotten.
+ *
+ * All methods are thread-safe.
+ */
+public class TimeSeriesStore {
+
+    private final int mSamplesPerSensor;
+    private final int mMaxSensors;
+    private final LinkedHashMap<String, SensorTimeSeries> mSeries;
+
+    private long mLastActivity = -1;
+    private long mEvicted = 0;
+
+    public TimeSeriesStore(int samplesPerSensor, int totalSampleBudget) {
+        if (samplesPerSensor <= 0 || totalSampleBudget < samplesPerSensor) {
+            throw new IllegalArgumentException("Budget of " + totalSampleBudget
+                    + " samples can't hold " + samplesPerSensor + " samples per sensor");
+        }
+        mSamplesPerSensor = samplesPerSensor;
+        mMaxSensors = totalSampleBudget / samplesPerSensor;
+
+        // Access ordered, so that the eldest entry is the least recently used sensor
+        mSeries = new LinkedHashMap<String, SensorTimeSeries>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SensorTimeSeries> eldest) {
+                if (size() > mMaxSensors) {
+                    mEvicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Appends every sample of the measurement, all stamped with its timestamp.
+     */
+    public synchronized void append(String uid, Measurement measurement) {
+        SensorTimeSeries series = mSeries.get(uid);
+        if (series == null) {
+            series = new SensorTimeSeries(mSamplesPerSensor);
+            mSeries.put(uid, series);
+        }
+
+        long timestamp = measurement.getTimestamp();
+        double[] samples = measurement.getSamples();
+        for (int i = 0; i < measurement.getCount(); i++) {
+            series.append(timestamp, samples[i]);
+        }
+        mLastActivity = Math.max(mLastActivity, timestamp);
+    }
+
+    /**
+     * @see SensorTimeSeries#last(int, long[], double[])
+     */
+    public synchronized int last(String uid, int n, long[] timestamps, double[] values) {
+        SensorTimeSeries series = mSeries.get(uid);
+        return series == null ? 0 : series.last(n, timestamps, values);
+    }
+
+    /**
+     * @see SensorTimeSeries#range(long, long, long[], double[])
+     */
+    public synchronized int range(String uid, long from, long to, long[] timestamps, double[] values) {
+        SensorTimeSeries series = mSeries.get(uid);
+        return series == null ? 0 : series.range(from, to, timestamps, values);
+    }
+
+    /**
+     * @return when the sensor last sent a sample, or -1 if we have nothing for it
+     */
+    public synchronized long lastActivity(String uid) {
+        SensorTimeSeries series = mSeries.get(uid);
+        return series == null ? -1 : series.lastTimestamp();
+    }
+
+    /**
+     * @return when any sensor last sent a sample, or -1 if none did
+     */
+    public synchronized long lastActivity() {
+        return mLastActivity;
+    }
+
+    public synchronized int sensorCount() {
+        return mSeries.size();
+    }
+
+    public synchronized long getEvictedCount() {
+        return mEvicted;
+    }
+
+    public int getSamplesPerSensor() {
+        return mSamplesPerSensor;
+    }
+
+    public int getMaxSensors() {
+        return mMaxSensors;
+    }
+
+    /**
+     * One line per sensor, the most recently active first : its sample count, last
+     * value and how long ago it came. Leaves the order of eviction alone.
+     *
+     * @param maxSensors how many sensors to list at most
+     */
+    public synchronized String format(int maxSensors, long nowMs) {
+        List<Map.Entry<String, SensorTimeSeries>> entries = new ArrayList<>(mSeries.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, SensorTimeSeries>>() {
+            @Override
+            public int compare(Map.Entry<String, SensorTimeSeries> a, Map.Entry<String, SensorTimeSeries> b) {
+                return Long.compare(b.getValue().lastTimestamp(), a.getValue().lastTimestamp());
+            }
+        });
+
+        StringBuilder out = new StringBuilder();
+        long[] timestamps = new long[1];
+        double[] values = new double[1];
+        for (int i = 0; i < Math.min(maxSensors, entries.size()); i++) {
+            SensorTimeSeries series = entries.get(i).getValue();
+            if (series.last(1, timestamps, values) == 0) {
+                continue;
+            }
+            out.append(String.format(Locale.US, "%-32s %5d samples, last %.4f %.1fs ago%n",
+                    entries.get(i).getKey(), series.size(), values[0], (nowMs - timestamps[0]) / 1000.0));
+        }
+        if (entries.size() > maxSensors) {
+            out.append(String.format(Locale.US, "... and %d more%n", entries.size() - maxSensors));
+        }
+        return out.toString();
+    }
+
+    public synchronized void clear() {
+        mSeries.clear();
+        mLastActivity = -1;
+    }
+}
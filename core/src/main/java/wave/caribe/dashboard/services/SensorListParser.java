@@ -0,0 +1,129 @@
+package wave.caribe.dashboard.services;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Pull parser for the sensor API (allPlacesInfos) response :
+ *
+ *   [{"name": "...", "lat": "15.93", "lon": "-61.30", "sensor_uids": ["..."]}, ...]
+ *
+ * Sensors are handed over one at a time while the stream is read, so only the
+ * place being parsed is held in memory whatever the size of the response. The
+ * coordinates can be numbers or strings, places lacking a name or coordinates
+ * are skipped, and only the first sensor uid of a place is kept.
+ */
+public class SensorListParser {
+
+    public interface SensorSink {
+        void onSensor(Sensor sensor);
+    }
+
+    private SensorListParser() {}
+
+    /**
+     * Reads the whole array from the stream, which is left open.
+     *
+     * @return the number of sensors emitted
+     */
+    public static int parse(InputStream in, SensorSink sink) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int count = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Sensor sensor = readPlace(reader);
+            if (sensor != null) {
+                sink.onSensor(sensor);
+                count++;
+            }
+        }
+        reader.endArray();
+        return count;
+    }
+
+    private static Sensor readPlace(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String name = null;
+        String uid = null;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (key) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "lat":
+                    lat = readDouble(reader);
+                    break;
+                case "lon":
+                    lon = readDouble(reader);
+                    break;
+                case "sensor_uids":
+                    uid = readFirstUid(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (name == null || Double.isNaN(lat) || Double.isNaN(lon)) {
+            return null;
+        }
+        return new Sensor(uid, name, lat, lon);
+    }
+
+    private static double readDouble(JsonReader reader) throws IOException {
+        try {
+            // Accepts quoted numbers as well
+            return reader.nextDouble();
+        } catch (NumberFormatException e) {
+            // The value isn't consumed on failure
+            reader.skipValue();
+            return Double.NaN;
+        }
+    }
+
+    private static String readFirstUid(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+
+        String uid = null;
+        boolean first = true;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (first && reader.peek() != JsonToken.NULL) {
+                uid = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+            first = false;
+        }
+        reader.endArray();
+
+        // The API sometimes sends the string "null" for places without a sensor
+        return "null".equals(uid) ? null : uid;
+    }
+}
@@ -0,0 +1,203 @@
+package wave.caribe.dashboard.startup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Runs the startup tasks in dependency order, each on the kind of thread it needs.
+ *
+ * A task is handed to its executor as soon as all its dependencies are done, so
+ * independent work overlaps and nobody waits for anything : start() only dispatches
+ * the tasks that are ready, the others are dispatched by the last dependency to end.
+ * A task whose dependency failed is skipped. Every task is recorded in the trace.
+ */
+public class StartupGraph {
+
+    public enum ThreadType {
+        UI,
+        IO,
+        COMPUTE
+    }
+
+    public interface Listener {
+        /**
+         * Called once every task ended or was skipped, on the thread of the last one.
+         */
+        void onFinished(StartupTrace trace);
+    }
+
+    private static class Task {
+        final String name;
+        final ThreadType type;
+        final Runnable body;
+        final String[] dependencies;
+        final List<Task> dependents = new ArrayList<>();
+        int waiting;
+        boolean skipped = false;
+        boolean failed = false;
+        long readyNs;
+
+        Task(String name, ThreadType type, Runnable body, String[] dependencies) {
+            this.name = name;
+            this.type = type;
+            this.body = body;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Executor[] mExecutors = new Executor[ThreadType.values().length];
+    private final StartupTrace mTrace;
+    private final Map<String, Task> mTasks = new LinkedHashMap<>();
+    private Listener mListener;
+    private int mRemaining;
+    private boolean mStarted = false;
+
+    public StartupGraph(Executor ui, Executor io, Executor compute, StartupTrace trace) {
+        mExecutors[ThreadType.UI.ordinal()] = ui;
+        mExecutors[ThreadType.IO.ordinal()] = io;
+        mExecutors[ThreadType.COMPUTE.ordinal()] = compute;
+        mTrace = trace;
+    }
+
+    public synchronized StartupGraph add(String name, ThreadType type, Runnable body, String... dependencies) {
+        if (mStarted) {
+            throw new IllegalStateException("Startup already started");
+        }
+        if (mTasks.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate startup task " + name);
+        }
+        mTasks.put(name, new Task(name, type, body, dependencies));
+        return this;
+    }
+
+    /**
+     * Dispatches the tasks without dependencies and returns.
+     *
+     * @throws IllegalArgumentException on an unknown dependency
+     * @throws IllegalStateException on a dependency cycle
+     */
+    public void start(Listener listener) {
+        List<Task> ready = new ArrayList<>();
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Startup already started");
+            }
+            for (Task task : mTasks.values()) {
+                for (String name : task.dependencies) {
+                    Task dependency = mTasks.get(name);
+                    if (dependency == null) {
+                        throw new IllegalArgumentException(task.name + " depends on unknown task " + name);
+                    }
+                    dependency.dependents.add(task);
+                }
+                task.waiting = task.dependencies.length;
+            }
+            checkAcyclic();
+
+            mStarted = true;
+            mListener = listener;
+            mRemaining = mTasks.size();
+            for (Task task : mTasks.values()) {
+                if (task.waiting == 0) {
+                    task.readyNs = mTrace.elapsedNs();
+                    ready.add(task);
+                }
+            }
+        }
+        if (ready.isEmpty()) {
+            listener.onFinished(mTrace);
+        }
+        dispatch(ready);
+    }
+
+    public StartupTrace getTrace() {
+        return mTrace;
+    }
+
+    private void dispatch(List<Task> ready) {
+        // Background work first, the UI executor may run its tasks right away
+        for (Task task : ready) {
+            if (task.type != ThreadType.UI) {
+                dispatch(task);
+            }
+        }
+        for (Task task : ready) {
+            if (task.type == ThreadType.UI) {
+                dispatch(task);
+            }
+        }
+    }
+
+    private void dispatch(final Task task) {
+        if (task.skipped) {
+            mTrace.record(task.name, task.type.name(), task.readyNs, task.readyNs, task.readyNs, "skipped");
+            onEnded(task);
+            return;
+        }
+        mExecutors[task.type.ordinal()].execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = mTrace.elapsedNs();
+                String status = "ok";
+                try {
+                    task.body.run();
+                } catch (RuntimeException e) {
+                    task.failed = true;
+                    status = "failed : " + e;
+                }
+                mTrace.record(task.name, task.type.name(), task.readyNs, start, mTrace.elapsedNs(), status);
+                onEnded(task);
+            }
+        });
+    }
+
+    private void onEnded(Task task) {
+        List<Task> ready = new ArrayList<>();
+        boolean finished;
+        synchronized (this) {
+            for (Task dependent : task.dependents) {
+                if (task.failed || task.skipped) {
+                    dependent.skipped = true;
+                }
+                if (--dependent.waiting == 0) {
+                    dependent.readyNs = mTrace.elapsedNs();
+                    ready.add(dependent);
+                }
+            }
+            finished = --mRemaining == 0;
+        }
+        if (finished) {
+            mListener.onFinished(mTrace);
+        }
+        dispatch(ready);
+    }
+
+    private void checkAcyclic() {
+        // Kahn : whatever can't be reached from the roots is on a cycle
+        Map<Task, Integer> waiting = new LinkedHashMap<>();
+        List<Task> queue = new ArrayList<>();
+        for (Task task : mTasks.values()) {
+            waiting.put(task, task.waiting);
+            if (task.waiting == 0) {
+                queue.add(task);
+            }
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            for (Task dependent : queue.get(i).dependents) {
+                int left = waiting.get(dependent) - 1;
+                waiting.put(dependent, left);
+                if (left == 0) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        if (queue.size() != mTasks.size()) {
+            throw new IllegalStateException("Startup tasks depend on each other");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package wave.caribe.dashboard.startup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Timeline of a startup : when each task was ready to run, started and ended, and
+ * when milestones such as the first marker were reached. Times are relative to the
+ * creation of the trace. Thread safe.
+ */
+public class StartupTrace {
+
+    private static class Entry {
+        final String name;
+        final String where;
+        final long readyNs;
+        final long startNs;
+        final long endNs;
+        final String status;
+
+        Entry(String name, String where, long readyNs, long startNs, long endNs, String status) {
+            this.name = name;
+            this.where = where;
+            this.readyNs = readyNs;
+            this.startNs = startNs;
+            this.endNs = endNs;
+            this.status = status;
+        }
+    }
+
+    private final long mOriginNs;
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final List<String> mMilestones = new ArrayList<>();
+
+    public StartupTrace() {
+        mOriginNs = System.nanoTime();
+    }
+
+    public long elapsedNs() {
+        return System.nanoTime() - mOriginNs;
+    }
+
+    /**
+     * Times as given by elapsedNs().
+     */
+    public synchronized void record(String name, String where, long readyNs, long startNs, long endNs, String status) {
+        mEntries.add(new Entry(name, where, readyNs, startNs, endNs, status));
+    }
+
+    /**
+     * Records a milestone the first time it's reached.
+     *
+     * @return false if it was already reached
+     */
+    public boolean mark(String milestone) {
+        long now = elapsedNs();
+        synchronized (this) {
+            if (mMilestones.contains(milestone)) {
+                return false;
+            }
+            mMilestones.add(milestone);
+            // A milestone is an entry without a thread
+            mEntries.add(new Entry(milestone, null, now, now, now, null));
+            return true;
+        }
+    }
+
+    /**
+     * @return one line per task and milestone, in the order they ended
+     */
+    public synchronized String format() {
+        StringBuilder out = new StringBuilder();
+        for (Entry entry : mEntries) {
+            if (entry.where == null) {
+                out.append(String.format(Locale.US, "%6.1f ms  %s%n", millis(entry.endNs), entry.name));
+                continue;
+            }
+            out.append(String.format(Locale.US, "%6.1f ms  %-16s %-8s waited %6.1f ms, ran %6.1f ms  %s%n",
+                    millis(entry.endNs), entry.name, entry.where,
+                    millis(entry.startNs - entry.readyNs), millis(entry.endNs - entry.startNs), entry.status));
+        }
+        return out.toString();
+    }
+
+    private static double millis(long ns) {
+        return ns / 1e6;
+    }
+}
@@ -0,0 +1,266 @@
+package wave.caribe.dashboard.state;
+
+import java.util.Arrays;
+
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Immutable snapshot of what the dashboard shows : the sensor list, the state of
+ * each sensor by id, the alert in progress and when we last heard from the sensors.
+ *
+ * Snapshots are derived from each other with a Builder. Sensor states are kept in
+ * chunks that are only copied when one of their sensors changes, so that a change
+ * doesn't copy the state of the whole fleet. A snapshot knows which sensors changed
+ * since the one it was built from.
+ */
+public final class DashboardState {
+
+    // States are ordered, the state of a group of sensors is the highest of theirs
+    public static final int STATE_DISABLED = 0;
+    public static final int STATE_STILL = 1;
+    public static final int STATE_WARNING = 2;
+    public static final int STATE_ALERT = 3;
+    public static final int STATE_COUNT = 4;
+
+    private static final int CHUNK_SHIFT = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int[] NO_CHANGES = new int[0];
+
+    public static final DashboardState EMPTY = of(SensorCatalogue.EMPTY);
+
+    private final SensorCatalogue catalogue;
+    private final byte[][] states;
+    private final long version;
+    private final int[] changes;
+    private final String alertMessage;
+    private final long lastMeasurementTime;
+    private final long lastAlertTime;
+
+    private DashboardState(SensorCatalogue catalogue, byte[][] states, long version, int[] changes,
+                           String alertMessage, long lastMeasurementTime, long lastAlertTime) {
+        this.catalogue = catalogue;
+        this.states = states;
+        this.version = version;
+        this.changes = changes;
+        this.alertMessage = alertMessage;
+        this.lastMeasurementTime = lastMeasurementTime;
+        this.lastAlertTime = lastAlertTime;
+    }
+
+    /**
+     * @return every sensor of the catalogue at rest, nothing going on
+     */
+    public static DashboardState of(SensorCatalogue catalogue) {
+        return new DashboardState(catalogue, restingStates(catalogue), 0, NO_CHANGES, null, 0, 0);
+    }
+
+    public SensorCatalogue getCatalogue() {
+        return catalogue;
+    }
+
+    public int size() {
+        return catalogue.size();
+    }
+
+    public int getState(int id) {
+        return states[id >>> CHUNK_SHIFT][id & (CHUNK_SIZE - 1)];
+    }
+
+    /**
+     * @return the state of the sensor when nothing happens : still, or disabled without a uid
+     */
+    public int restingState(int id) {
+        return restingState(catalogue.getSensors().get(id));
+    }
+
+    /**
+     * Incremented by each change, snapshots of a store are totally ordered.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    // Ids of the sensors whose state differs from the snapshot this one was built from
+    public int getChangeCount() {
+        return changes.length;
+    }
+
+    public int getChangedId(int i) {
+        return changes[i];
+    }
+
+    public boolean isAlertInProgress() {
+        return alertMessage != null;
+    }
+
+    /**
+     * @return the message of the alert in progress, or null
+     */
+    public String getAlertMessage() {
+        return alertMessage;
+    }
+
+    // Wall clock times, 0 for never
+    public long getLastMeasurementTime() {
+        return lastMeasurementTime;
+    }
+
+    public long getLastAlertTime() {
+        return lastAlertTime;
+    }
+
+    public long getLastActivityTime() {
+        return Math.max(lastMeasurementTime, lastAlertTime);
+    }
+
+    public Builder edit() {
+        return new Builder(this);
+    }
+
+    private static int restingState(Sensor sensor) {
+        return sensor.hasUid() ? STATE_STILL : STATE_DISABLED;
+    }
+
+    private static byte[][] restingStates(SensorCatalogue catalogue) {
+        int n = catalogue.size();
+        byte[][] states = new byte[(n + CHUNK_SIZE - 1) >>> CHUNK_SHIFT][];
+        for (int chunk = 0; chunk < states.length; chunk++) {
+            states[chunk] = new byte[Math.min(CHUNK_SIZE, n - (chunk << CHUNK_SHIFT))];
+        }
+        for (int id = 0; id < n; id++) {
+            states[id >>> CHUNK_SHIFT][id & (CHUNK_SIZE - 1)] = (byte) restingState(catalogue.getSensors().get(id));
+        }
+        return states;
+    }
+
+    /**
+     * Next snapshot in the making. Only the chunks that change are copied.
+     */
+    public static final class Builder {
+        private final DashboardState base;
+        private SensorCatalogue catalogue;
+        private byte[][] states;
+        // Chunks already copied, that we may write to
+        private boolean[] owned;
+        private int[] changes = NO_CHANGES;
+        private int changeCount = 0;
+        private String alertMessage;
+        private long lastMeasurementTime;
+        private long lastAlertTime;
+
+        private Builder(DashboardState base) {
+            this.base = base;
+            this.catalogue = base.catalogue;
+            this.states = base.states;
+            this.alertMessage = base.alertMessage;
+            this.lastMeasurementTime = base.lastMeasurementTime;
+            this.lastAlertTime = base.lastAlertTime;
+        }
+
+        public SensorCatalogue getCatalogue() {
+            return catalogue;
+        }
+
+        public int getState(int id) {
+            return states[id >>> CHUNK_SHIFT][id & (CHUNK_SIZE - 1)];
+        }
+
+        public int restingState(int id) {
+            return DashboardState.restingState(catalogue.getSensors().get(id));
+        }
+
+        public boolean isAlertInProgress() {
+            return alertMessage != null;
+        }
+
+        public Builder setState(int id, int state) {
+            int chunk = id >>> CHUNK_SHIFT;
+            if (states[chunk][id & (CHUNK_SIZE - 1)] == state) {
+                return this;
+            }
+            if (owned == null) {
+                states = states.clone();
+                owned = new boolean[states.length];
+            }
+            if (!owned[chunk]) {
+                states[chunk] = states[chunk].clone();
+                owned[chunk] = true;
+            }
+            states[chunk][id & (CHUNK_SIZE - 1)] = (byte) state;
+
+            if (changeCount == changes.length) {
+                changes = Arrays.copyOf(changes, Math.max(8, changeCount * 2));
+            }
+            changes[changeCount++] = id;
+            return this;
+        }
+
+        /**
+         * Brings every sensor back to its resting state.
+         */
+        public Builder resetStates() {
+            for (int id = 0; id < catalogue.size(); id++) {
+                setState(id, restingState(id));
+            }
+            return this;
+        }
+
+        /**
+         * Starts over with another sensor list, every sensor at rest. Doesn't count as
+         * a change of the sensors, their ids are not comparable anymore.
+         */
+        public Builder setCatalogue(SensorCatalogue catalogue) {
+            this.catalogue = catalogue;
+            this.states = restingStates(catalogue);
+            this.owned = null;
+            this.changes = NO_CHANGES;
+            this.changeCount = 0;
+            return this;
+        }
+
+        public Builder setAlert(String message, long time) {
+            alertMessage = message;
+            lastAlertTime = time;
+            return this;
+        }
+
+        public Builder clearAlert() {
+            alertMessage = null;
+            return this;
+        }
+
+        public Builder setLastMeasurementTime(long time) {
+            lastMeasurementTime = time;
+            return this;
+        }
+
+        /**
+         * @return the snapshot, or the base one when nothing changed
+         */
+        public DashboardState build() {
+            boolean changed = catalogue != base.catalogue || changeCount > 0
+                    || alertMessage != base.alertMessage
+                    || lastMeasurementTime != base.lastMeasurementTime
+                    || lastAlertTime != base.lastAlertTime;
+            if (!changed) {
+                return base;
+            }
+            // Each sensor once, a sensor may have changed several times or back.
+            // None with another catalogue, ids don't match
+            int[] ids = Arrays.copyOf(changes, catalogue == base.catalogue ? changeCount : 0);
+            Arrays.sort(ids);
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                int id = ids[i];
+                if ((i == 0 || id != ids[i - 1]) && getState(id) != base.getState(id)) {
+                    ids[count++] = id;
+                }
+            }
+            return new DashboardState(catalogue, states, base.version + 1, Arrays.copyOf(ids, count),
+                    alertMessage, lastMeasurementTime, lastAlertTime);
+        }
+    }
+}
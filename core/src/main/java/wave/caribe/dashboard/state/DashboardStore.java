@@ -0,0 +1,71 @@
+package wave.caribe.dashboard.state;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Holds the current DashboardState.
+ *
+ * Reading is a single volatile read from any thread, and gives a consistent
+ * snapshot that never changes under the reader. Updates build the next snapshot
+ * from the current one and publish it as a whole. They are serialized, so that
+ * listeners see every snapshot once, in order, each one following the previous.
+ */
+public class DashboardStore {
+
+    public interface Update {
+        /**
+         * Describes the changes. Must not block : other updates wait for it.
+         */
+        void apply(DashboardState.Builder state);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread of the update, before the next update starts.
+         */
+        void onStateChanged(DashboardState previous, DashboardState current);
+    }
+
+    private final AtomicReference<DashboardState> mState;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Object mUpdateLock = new Object();
+
+    public DashboardStore(DashboardState initial) {
+        mState = new AtomicReference<>(initial);
+    }
+
+    public DashboardState get() {
+        return mState.get();
+    }
+
+    /**
+     * @return the new snapshot, the current one if nothing changed
+     */
+    public DashboardState update(Update update) {
+        synchronized (mUpdateLock) {
+            DashboardState previous = mState.get();
+            DashboardState.Builder builder = previous.edit();
+            update.apply(builder);
+            DashboardState current = builder.build();
+            if (current == previous) {
+                return previous;
+            }
+            mState.set(current);
+            for (Listener listener : mListeners) {
+                listener.onStateChanged(previous, current);
+            }
+            return current;
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
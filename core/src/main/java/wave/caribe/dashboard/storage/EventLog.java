@@ -0,0 +1,427 @@
+package wave.caribe.dashboard.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.model.Measurement;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Append-only log of the decoded events, so that they survive the process.
+ *
+ * Events are written through memory-mapped segments of SEGMENT_SIZE bytes. An append
+ * is a copy into the mapping under a short lock : the kernel writes the pages back on
+ * its own, so the MQTT callback thread never waits for the disk. Creating, mapping
+ * and pre-faulting the next segment, and deleting old ones, happen on a background
+ * thread. If the next segment isn't ready when the current one is full, the event
+ * is dropped and counted. A segment that can't be created (disk full, no
+ * permission) is tried again after SEGMENT_RETRY_DELAY_MS.
+ *
+ * Segments are named after the time they were started. Each one starts with a
+ * header (magic, version) followed by records :
+ *
+ *   int    length of what follows, written last so a torn record reads as the end
+ *   byte   type (TYPE_MEASUREMENT or TYPE_ALERT)
+ *   long   timestamp in ms
+ *   short  uid length, then the uid bytes
+ *   int    sample count, then the samples as doubles   (measurement)
+ *   int    text length, then the UTF-8 alert payload    (alert)
+ *
+ * A zero length marks the end of the written part of a segment. So does a record
+ * whose fields don't fit in its length : pages are written back in any order, a
+ * crash can leave a length on disk without its record.
+ */
+public class EventLog {
+
+    public interface Visitor {
+        // The measurement is reused for the next record
+        void onMeasurement(String uid, Measurement measurement);
+        void onAlert(long timestamp, String alert);
+    }
+
+    private static final int MAGIC = 0x43574c47; // "CWLG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final String SUFFIX = ".log";
+    private static final long SEGMENT_RETRY_DELAY_MS = 10000;
+
+    private static final byte TYPE_MEASUREMENT = 1;
+    private static final byte TYPE_ALERT = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mMaxAgeMs;
+
+    private final ScheduledThreadPoolExecutor mIoExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EventLog");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // Guarded by this
+    private MappedByteBuffer mCurrent;
+    private MappedByteBuffer mNext;
+    private boolean mPreparing = false;
+    private boolean mClosed = false;
+    private long mWritten = 0;
+    private long mDropped = 0;
+    private int mFailedSegments = 0;
+
+    private final Runnable mPrepareNext = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (EventLog.this) {
+                if (mClosed) {
+                    return;
+                }
+            }
+            MappedByteBuffer segment = null;
+            try {
+                segment = createSegment();
+                enforceRetention();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (EventLog.this) {
+                if (mClosed) {
+                    mPreparing = false;
+                    return;
+                }
+                if (segment == null) {
+                    // Still preparing : nothing else is requested until the retry, events are dropped meanwhile
+                    mFailedSegments++;
+                    mIoExecutor.schedule(this, SEGMENT_RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                mPreparing = false;
+                if (mCurrent == null) {
+                    mCurrent = segment;
+                    requestNextSegment();
+                } else {
+                    mNext = segment;
+                }
+            }
+        }
+    };
+
+    public EventLog(File directory, long maxBytes, long maxAgeMs) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mMaxAgeMs = maxAgeMs;
+        // A pending retry is not worth running once closed
+        mIoExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Starts a new segment in the background, events appended before it is ready are dropped.
+     * Does nothing once closed.
+     */
+    public synchronized void start() {
+        requestNextSegment();
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        mCurrent = null;
+        mNext = null;
+        mIoExecutor.shutdown();
+    }
+
+    public void append(String uid, Measurement measurement) {
+        int count = measurement.getCount();
+        int uidLength = encodedLength(uid);
+        int length = 1 + 8 + 2 + uidLength + 4 + count * 8;
+
+        synchronized (this) {
+            ByteBuffer out = reserve(length);
+            if (out == null) {
+                return;
+            }
+            int start = out.position();
+            out.position(start + 4);
+            out.put(TYPE_MEASUREMENT);
+            out.putLong(measurement.getTimestamp());
+            putUid(out, uid, uidLength);
+            out.putInt(count);
+            double[] samples = measurement.getSamples();
+            for (int i = 0; i < count; i++) {
+                out.putDouble(samples[i]);
+            }
+            commit(out, start, length);
+        }
+    }
+
+    public void appendAlert(long timestamp, String alert) {
+        byte[] text = alert.getBytes(UTF8);
+        int length = 1 + 8 + 2 + 4 + text.length;
+
+        synchronized (this) {
+            ByteBuffer out = reserve(length);
+            if (out == null) {
+                return;
+            }
+            int start = out.position();
+            out.position(start + 4);
+            out.put(TYPE_ALERT);
+            out.putLong(timestamp);
+            out.putShort((short) 0);
+            out.putInt(text.length);
+            out.put(text);
+            commit(out, start, length);
+        }
+    }
+
+    /**
+     * Reads back every event logged since the given time, oldest first, on the calling thread.
+     * Meant to run before start() : events appended meanwhile may or may not be seen.
+     * A corrupt record ends the replay of its segment, the next segments are still read.
+     *
+     * @return the number of events visited
+     */
+    public int replay(long since, Visitor visitor) throws IOException {
+        File[] segments = listSegments();
+        Measurement measurement = new Measurement();
+        HashMap<String, String> uids = new HashMap<>();
+        byte[] scratch = new byte[256];
+        int visited = 0;
+
+        for (int s = 0; s < segments.length; s++) {
+            // Everything in a segment is older than the start of the next one
+            if (s + 1 < segments.length && startTime(segments[s + 1]) < since) {
+                continue;
+            }
+
+            RandomAccessFile file = new RandomAccessFile(segments[s], "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                    continue;
+                }
+
+                while (in.remaining() >= 4) {
+                    int length = in.getInt();
+                    if (length < 1 + 8 + 2 || length > in.remaining()) {
+                        break;
+                    }
+                    int next = in.position() + length;
+
+                    byte type = in.get();
+                    long timestamp = in.getLong();
+                    int uidLength = in.getShort() & 0xffff;
+                    if (!fits(in, next, uidLength)) {
+                        break;
+                    }
+                    if (scratch.length < uidLength) {
+                        scratch = new byte[uidLength];
+                    }
+                    in.get(scratch, 0, uidLength);
+
+                    if (timestamp >= since) {
+                        if (type == TYPE_MEASUREMENT) {
+                            int count = fits(in, next, 4) ? in.getInt() : -1;
+                            if (count < 0 || !fits(in, next, count * 8L)) {
+                                break;
+                            }
+                            String uid = intern(uids, scratch, uidLength);
+                            measurement.reset(timestamp);
+                            for (int i = 0; i < count; i++) {
+                                measurement.add(in.getDouble());
+                            }
+                            visitor.onMeasurement(uid, measurement);
+                            visited++;
+                        } else if (type == TYPE_ALERT) {
+                            int textLength = fits(in, next, 4) ? in.getInt() : -1;
+                            if (textLength < 0 || !fits(in, next, textLength)) {
+                                break;
+                            }
+                            byte[] text = new byte[textLength];
+                            in.get(text);
+                            visitor.onAlert(timestamp, new String(text, UTF8));
+                            visited++;
+                        }
+                    }
+                    in.position(next);
+                }
+            } catch (RuntimeException e) {
+                // Whatever the checks above missed, the other segments are still worth reading
+                e.printStackTrace();
+            } finally {
+                file.close();
+            }
+        }
+        return visited;
+    }
+
+    public synchronized long getWrittenCount() {
+        return mWritten;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    // Attempts at creating a segment that failed
+    public synchronized int getFailedSegmentCount() {
+        return mFailedSegments;
+    }
+
+    // Returns the buffer to write length bytes into (plus the length prefix), or null to drop
+    private ByteBuffer reserve(int length) {
+        if (mCurrent != null && mCurrent.remaining() < length + 4) {
+            // Rotate to the segment prepared in the background, if any
+            mCurrent = mNext;
+            mNext = null;
+            requestNextSegment();
+        }
+        if (mCurrent == null || mCurrent.remaining() < length + 4) {
+            mDropped++;
+            return null;
+        }
+        return mCurrent;
+    }
+
+    private void commit(ByteBuffer out, int start, int length) {
+        // The length goes last, a record cut short by a crash is never read back
+        out.putInt(start, length);
+        mWritten++;
+    }
+
+    private void requestNextSegment() {
+        if (!mPreparing && mNext == null && !mClosed) {
+            mPreparing = true;
+            mIoExecutor.execute(mPrepareNext);
+        }
+    }
+
+    private MappedByteBuffer createSegment() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+
+        long start = System.currentTimeMillis();
+        File file = new File(mDirectory, segmentName(start));
+        while (file.exists()) {
+            file = new File(mDirectory, segmentName(++start));
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(SEGMENT_SIZE);
+            MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            // Fault the pages in now rather than on the MQTT thread
+            segment.load();
+            segment.putInt(MAGIC);
+            segment.putInt(VERSION);
+            return segment;
+        } finally {
+            // The mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    // Drops the oldest segments while we are over the size budget or they only hold expired events
+    private void enforceRetention() {
+        File[] segments = listSegments();
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+
+        long expiry = System.currentTimeMillis() - mMaxAgeMs;
+        // Always keep the two newest segments, they are (or are about to be) written to
+        for (int s = 0; s < segments.length - 2; s++) {
+            boolean expired = startTime(segments[s + 1]) < expiry;
+            if (!expired && total <= mMaxBytes) {
+                break;
+            }
+            total -= segments[s].length();
+            //noinspection ResultOfMethodCallIgnored
+            segments[s].delete();
+        }
+    }
+
+    private File[] listSegments() {
+        File[] segments = mDirectory.listFiles();
+        if (segments == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File segment : segments) {
+            if (segment.getName().endsWith(SUFFIX)) {
+                segments[count++] = segment;
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        // Names are zero padded, so lexical order is chronological order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    // Whether the record ending at next still holds that many bytes
+    private static boolean fits(ByteBuffer in, int next, long bytes) {
+        return bytes <= next - in.position();
+    }
+
+    private static String segmentName(long start) {
+        return String.format("%019d", start) + SUFFIX;
+    }
+
+    private static long startTime(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int encodedLength(String uid) {
+        int length = uid.length();
+        for (int i = 0; i < length; i++) {
+            if (uid.charAt(i) >= 0x80) {
+                return uid.getBytes(UTF8).length;
+            }
+        }
+        return length;
+    }
+
+    // Uids are ASCII in practice, which we can write without allocating
+    private static void putUid(ByteBuffer out, String uid, int encodedLength) {
+        out.putShort((short) encodedLength);
+        if (encodedLength == uid.length()) {
+            for (int i = 0; i < encodedLength; i++) {
+                out.put((byte) uid.charAt(i));
+            }
+        } else {
+            out.put(uid.getBytes(UTF8));
+        }
+    }
+
+    private static String intern(HashMap<String, String> uids, byte[] bytes, int length) {
+        String uid = new String(bytes, 0, length, UTF8);
+        String known = uids.get(uid);
+        if (known == null) {
+            uids.put(uid, uid);
+            return uid;
+        }
+        return known;
+    }
+}
@@ -0,0 +1,166 @@
+package wave.caribe.dashboard.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Keeps the last sensor list received from the API, so that markers can be shown
+ * before the network answers.
+ *
+ * The list is stored in a small binary file along with the URL it came from and the
+ * validators (ETag, Last-Modified) of the response, which are used to revalidate it
+ * with a conditional GET. The file is replaced atomically, a crash while saving
+ * leaves the previous version in place.
+ */
+public class SensorCatalogueCache {
+
+    private static final int MAGIC = 0x43574353; // "CWCS"
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final List<Sensor> sensors;
+
+        public Entry(String url, String eTag, String lastModified, List<Sensor> sensors) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.sensors = Collections.unmodifiableList(sensors);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        // Null when the server didn't send one
+        public String getETag() {
+            return eTag;
+        }
+
+        // Null when the server didn't send one
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public List<Sensor> getSensors() {
+            return sensors;
+        }
+    }
+
+    private final File mFile;
+
+    public SensorCatalogueCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return the cached catalogue if it was fetched from url, or null
+     */
+    public Entry load(String url) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String source = in.readUTF();
+            if (!source.equals(url)) {
+                return null;
+            }
+            String eTag = readNullableUTF(in);
+            String lastModified = readNullableUTF(in);
+
+            int count = in.readInt();
+            if (count < 0) {
+                return null;
+            }
+            // Don't trust a corrupt count with the allocation, running out of data ends the loop
+            ArrayList<Sensor> sensors = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                String uid = readNullableUTF(in);
+                String name = in.readUTF();
+                double lat = in.readDouble();
+                double lon = in.readDouble();
+                sensors.add(new Sensor(uid, name, lat, lon));
+            }
+            return new Entry(source, eTag, lastModified, sensors);
+        } catch (IOException e) {
+            // Truncated or corrupt, it will be replaced by the next download
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public void save(Entry entry) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(entry.getUrl());
+            writeNullableUTF(out, entry.getETag());
+            writeNullableUTF(out, entry.getLastModified());
+
+            List<Sensor> sensors = entry.getSensors();
+            out.writeInt(sensors.size());
+            for (Sensor sensor : sensors) {
+                writeNullableUTF(out, sensor.hasUid() ? sensor.getUid() : null);
+                out.writeUTF(sensor.getName());
+                out.writeDouble(sensor.getLatitude());
+                out.writeDouble(sensor.getLongitude());
+            }
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            closeQuietly(out);
+        }
+
+        if (!tmp.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Can't replace " + mFile);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
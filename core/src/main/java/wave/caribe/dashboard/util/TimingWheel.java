@@ -0,0 +1,151 @@
+package wave.caribe.dashboard.util;
+
+import java.util.Arrays;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Hashed timing wheel for deadlines keyed by small ints, e.g. sensor ids.
+ *
+ * Each key has at most one deadline. Deadlines are rounded up to the tick and
+ * hashed into one of the slots of the wheel, where they are kept in an intrusive
+ * doubly linked list made of plain arrays : scheduling and cancelling are O(1) and
+ * allocate nothing. advance() walks the slots of the ticks elapsed since the last
+ * call and reports the keys whose deadline passed. Deadlines further than a turn
+ * of the wheel simply stay in their slot for the next turns.
+ *
+ * Time is given by the caller, the wheel doesn't own a thread. Not thread safe.
+ */
+public class TimingWheel {
+
+    public interface Listener {
+        void onExpired(int key);
+    }
+
+    private static final int NONE = -1;
+
+    private final long mTickMs;
+    private final int mMask;
+    private final int[] mSlotHeads;
+
+    // By key
+    private final long[] mDeadlines;
+    private final int[] mNext;
+    private final int[] mPrev;
+    private final boolean[] mScheduled;
+
+    private long mTick;
+    private int mCount = 0;
+
+    /**
+     * @param capacity keys are in [0, capacity)
+     * @param slots rounded up to a power of two
+     * @param nowMs the current time, on the clock later given to schedule() and advance()
+     */
+    public TimingWheel(int capacity, long tickMs, int slots, long nowMs) {
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        mTickMs = tickMs;
+        mMask = size - 1;
+        mSlotHeads = new int[size];
+        Arrays.fill(mSlotHeads, NONE);
+        mDeadlines = new long[capacity];
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        mScheduled = new boolean[capacity];
+        mTick = nowMs / tickMs;
+    }
+
+    public int capacity() {
+        return mDeadlines.length;
+    }
+
+    /**
+     * Sets the deadline of the key, replacing the previous one if any.
+     */
+    public void schedule(int key, long delayMs, long nowMs) {
+        cancel(key);
+        if (mCount == 0) {
+            // Nothing to walk since the last advance(), skip the idle time
+            mTick = Math.max(mTick, nowMs / mTickMs);
+        }
+        // Rounded up, never expires early. Never in the past either, that slot was already walked
+        long deadline = Math.max(mTick + 1, (nowMs + delayMs + mTickMs - 1) / mTickMs);
+        int slot = (int) (deadline & mMask);
+
+        mDeadlines[key] = deadline;
+        mScheduled[key] = true;
+        mPrev[key] = NONE;
+        mNext[key] = mSlotHeads[slot];
+        if (mSlotHeads[slot] != NONE) {
+            mPrev[mSlotHeads[slot]] = key;
+        }
+        mSlotHeads[slot] = key;
+        mCount++;
+    }
+
+    public void cancel(int key) {
+        if (!mScheduled[key]) {
+            return;
+        }
+        int slot = (int) (mDeadlines[key] & mMask);
+        if (mPrev[key] != NONE) {
+            mNext[mPrev[key]] = mNext[key];
+        } else {
+            mSlotHeads[slot] = mNext[key];
+        }
+        if (mNext[key] != NONE) {
+            mPrev[mNext[key]] = mPrev[key];
+        }
+        mScheduled[key] = false;
+        mCount--;
+    }
+
+    public void cancelAll() {
+        Arrays.fill(mSlotHeads, NONE);
+        Arrays.fill(mScheduled, false);
+        mCount = 0;
+    }
+
+    public boolean isScheduled(int key) {
+        return mScheduled[key];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Expires every deadline up to now. The listener may schedule or cancel keys.
+     *
+     * @return the number of keys that expired
+     */
+    public int advance(long nowMs, Listener listener) {
+        long target = nowMs / mTickMs;
+        int expired = 0;
+        // No need to walk more than a turn when nothing is pending
+        while (mTick < target && mCount > 0) {
+            mTick++;
+            int slot = (int) (mTick & mMask);
+            int key = mSlotHeads[slot];
+            while (key != NONE) {
+                int next = mNext[key];
+                if (mDeadlines[key] <= mTick) {
+                    cancel(key);
+                    expired++;
+                    listener.onExpired(key);
+                    if (next != NONE && (!mScheduled[next] || (int) (mDeadlines[next] & mMask) != slot)) {
+                        // The listener cancelled it or moved it to another slot, start over with this one
+                        next = mSlotHeads[slot];
+                    }
+                }
+                key = next;
+            }
+        }
+        mTick = Math.max(mTick, target);
+        return expired;
+    }
+}
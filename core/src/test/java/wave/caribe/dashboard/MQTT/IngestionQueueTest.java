@@ -0,0 +1,138 @@
+package wave.caribe.dashboard.MQTT;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import wave.caribe.dashboard.model.Measurement;
+
+import static org.junit.Assert.assertEquals;
+
+public class IngestionQueueTest {
+
+    private static class Recorder implements IngestionQueue.Consumer {
+        final List<String> entries = new ArrayList<>();
+
+        @Override
+        public void accept(String uid, Measurement measurement) {
+            entries.add(uid + "=" + (int) measurement.getSample(0) + "@" + measurement.getTimestamp());
+        }
+    }
+
+    private final Measurement mMeasurement = new Measurement();
+
+    private void offer(IngestionQueue queue, String uid, int value, long timestamp) {
+        // Always the same buffer, the queue must copy it
+        mMeasurement.reset(timestamp);
+        mMeasurement.add(value);
+        queue.offer(uid, mMeasurement);
+    }
+
+    @Test
+    public void drainsInArrivalOrder() {
+        IngestionQueue queue = new IngestionQueue(8);
+        offer(queue, "a", 1, 10);
+        offer(queue, "b", 2, 20);
+        offer(queue, "c", 3, 30);
+
+        Recorder recorder = new Recorder();
+        assertEquals(3, queue.drain(recorder, 10));
+        assertEquals(Arrays.asList("a=1@10", "b=2@20", "c=3@30"), recorder.entries);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void coalescesPendingValuesInPlace() {
+        IngestionQueue queue = new IngestionQueue(8);
+        offer(queue, "a", 1, 10);
+        offer(queue, "b", 2, 20);
+        offer(queue, "a", 3, 30);
+
+        Recorder recorder = new Recorder();
+        queue.drain(recorder, 10);
+        // The latest value, at the position of the first one
+        assertEquals(Arrays.asList("a=3@30", "b=2@20"), recorder.entries);
+        assertEquals(3, queue.getOfferedCount());
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void drainedValuesAreQueuedAgain() {
+        IngestionQueue queue = new IngestionQueue(8);
+        offer(queue, "a", 1, 10);
+        queue.drain(new Recorder(), 10);
+        offer(queue, "a", 2, 20);
+
+        Recorder recorder = new Recorder();
+        queue.drain(recorder, 10);
+        assertEquals(Arrays.asList("a=2@20"), recorder.entries);
+        assertEquals(0, queue.getCoalescedCount());
+    }
+
+    @Test
+    public void overflowDropsTheOldest() {
+        IngestionQueue queue = new IngestionQueue(3);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, "s" + i, i, i);
+        }
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.getDroppedCount());
+
+        // A dropped uid is a new entry again
+        offer(queue, "s0", 9, 9);
+        Recorder recorder = new Recorder();
+        queue.drain(recorder, 10);
+        assertEquals(Arrays.asList("s3=3@3", "s4=4@4", "s0=9@9"), recorder.entries);
+        assertEquals(3, queue.getDroppedCount());
+    }
+
+    @Test
+    public void drainIsBounded() {
+        IngestionQueue queue = new IngestionQueue(8);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, "s" + i, i, i);
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, queue.drain(recorder, 2));
+        assertEquals(3, queue.size());
+        assertEquals(3, queue.drain(recorder, 10));
+        assertEquals(Arrays.asList("s0=0@0", "s1=1@1", "s2=2@2", "s3=3@3", "s4=4@4"), recorder.entries);
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        IngestionQueue queue = new IngestionQueue(3);
+        Recorder recorder = new Recorder();
+        for (int i = 0; i < 10; i++) {
+            offer(queue, "s" + i, i, i);
+            if (i % 2 == 1) {
+                queue.drain(recorder, 2);
+            }
+        }
+        queue.drain(recorder, 10);
+        assertEquals(10, recorder.entries.size());
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals("s9=9@9", recorder.entries.get(9));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        IngestionQueue queue = new IngestionQueue(4);
+        offer(queue, "a", 1, 10);
+        queue.clear();
+        assertEquals(0, queue.size());
+
+        offer(queue, "a", 2, 20);
+        assertEquals(0, queue.getCoalescedCount());
+        assertEquals(1, queue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyQueue() {
+        new IngestionQueue(0);
+    }
+}
@@ -0,0 +1,143 @@
+package wave.caribe.dashboard.MQTT;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import wave.caribe.dashboard.model.Measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MeasurementDecoderTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final MeasurementDecoder mDecoder = new MeasurementDecoder();
+
+    private Measurement decode(String payload) {
+        return mDecoder.decode(payload.getBytes(ASCII), 1234);
+    }
+
+    private void assertSamples(Measurement measurement, double... expected) {
+        assertEquals(expected.length, measurement.getCount());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Sample " + i, expected[i], measurement.getSample(i), 0);
+        }
+    }
+
+    private void assertMalformed(String payload) {
+        try {
+            decode(payload);
+            fail("Accepted " + payload);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void flatArray() {
+        Measurement measurement = decode(" [1, -2.5, 3e2, 0.125] ");
+        assertEquals(1234, measurement.getTimestamp());
+        assertSamples(measurement, 1, -2.5, 300, 0.125);
+    }
+
+    @Test
+    public void emptyArray() {
+        assertSamples(decode("[]"));
+        assertSamples(decode("[[], []]"));
+    }
+
+    @Test
+    public void nestedArraysAreFlattened() {
+        assertSamples(decode("[[1, 2], [3, [4, 5]], 6]"), 1, 2, 3, 4, 5, 6);
+    }
+
+    @Test
+    public void literalsAndStrings() {
+        Measurement measurement = decode("[null, true, false, \"4.5\", \"n/a\", \"\"]");
+        assertEquals(6, measurement.getCount());
+        assertTrue(Double.isNaN(measurement.getSample(0)));
+        assertEquals(1, measurement.getSample(1), 0);
+        assertEquals(0, measurement.getSample(2), 0);
+        assertEquals(4.5, measurement.getSample(3), 0);
+        assertTrue(Double.isNaN(measurement.getSample(4)));
+        assertTrue(Double.isNaN(measurement.getSample(5)));
+    }
+
+    @Test
+    public void numbersMatchDoubleParsing() {
+        String[] numbers = {
+                "0", "-0.0", "1.5E-3", "123456789012345", "1234567890123456789",
+                "0.000000000000000000000000001", "1e22", "1e23", "1e308", "4.9e-324",
+                "1461234567890123456", "0.1", "2.2250738585072014E-308", "123.456e-10"
+        };
+        for (String number : numbers) {
+            Measurement measurement = decode("[" + number + "]");
+            assertEquals(number, Double.parseDouble(number), measurement.getSample(0), 0);
+        }
+    }
+
+    @Test
+    public void longTimestampsKeepTheirDigits() {
+        // Nanosecond timestamps, as sent by the load test
+        assertSamples(decode("[[1461234567890123456, 0.5]]"), 1461234567890123456.0, 0.5);
+    }
+
+    @Test
+    public void malformedPayloads() {
+        assertMalformed("");
+        assertMalformed("1");
+        assertMalformed("{\"a\": 1}");
+        assertMalformed("[1, 2");
+        assertMalformed("[1 2]");
+        assertMalformed("[1,]");
+        assertMalformed("[1] 2");
+        assertMalformed("[nul]");
+        assertMalformed("[\"unterminated]");
+        assertMalformed("[.]");
+        assertMalformed("[-]");
+    }
+
+    @Test
+    public void deepNestingIsRejected() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            payload.append('[');
+        }
+        assertMalformed(payload.toString());
+    }
+
+    @Test
+    public void nestingUpToTheLimitIsAccepted() {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 32; i++) {
+            payload.append('[');
+        }
+        payload.append('7');
+        for (int i = 0; i < 32; i++) {
+            payload.append(']');
+        }
+        assertSamples(decode(payload.toString()), 7);
+        assertMalformed("[" + payload + "]");
+    }
+
+    @Test
+    public void decoderIsReusableAfterAnError() {
+        assertMalformed("[1, x]");
+        assertSamples(decode("[2]"), 2);
+    }
+
+    @Test
+    public void decodesASliceOfTheBuffer() {
+        byte[] buffer = "xx[1, 2]yy".getBytes(ASCII);
+        assertSamples(mDecoder.decode(buffer, 2, 6, 0), 1, 2);
+    }
+
+    @Test
+    public void uidIsTheSecondLevelOfTheTopic() {
+        assertEquals("abc", mDecoder.uidForTopic("measurement/abc"));
+        assertEquals("abc", mDecoder.uidForTopic("measurement/abc/raw"));
+        assertEquals("", mDecoder.uidForTopic("measurement/"));
+    }
+}
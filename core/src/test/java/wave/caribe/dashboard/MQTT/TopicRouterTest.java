@@ -0,0 +1,116 @@
+package wave.caribe.dashboard.MQTT;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TopicRouterTest {
+
+    private static final byte[] PAYLOAD = new byte[0];
+
+    private final List<String> mCalls = new ArrayList<>();
+
+    private TopicRouter.Handler handler(final String name) {
+        return new TopicRouter.Handler() {
+            @Override
+            public void handle(String topic, byte[] payload) {
+                mCalls.add(name + " " + topic);
+            }
+        };
+    }
+
+    @Test
+    public void exactFilter() throws Exception {
+        TopicRouter router = new TopicRouter.Builder()
+                .route("alert/general", handler("alert"))
+                .build();
+
+        assertEquals(1, router.dispatch("alert/general", PAYLOAD));
+        assertEquals(0, router.dispatch("alert/general/more", PAYLOAD));
+        assertEquals(0, router.dispatch("alert", PAYLOAD));
+        assertEquals(0, router.dispatch("alert/other", PAYLOAD));
+        assertEquals(Arrays.asList("alert alert/general"), mCalls);
+    }
+
+    @Test
+    public void singleLevelWildcard() throws Exception {
+        TopicRouter router = new TopicRouter.Builder()
+                .route("sensor/+/status", handler("status"))
+                .build();
+
+        assertEquals(1, router.dispatch("sensor/42/status", PAYLOAD));
+        // An empty level is still a level
+        assertEquals(1, router.dispatch("sensor//status", PAYLOAD));
+        assertEquals(0, router.dispatch("sensor/42/43/status", PAYLOAD));
+        assertEquals(0, router.dispatch("sensor/status", PAYLOAD));
+    }
+
+    @Test
+    public void multiLevelWildcardAlsoMatchesItsParent() throws Exception {
+        TopicRouter router = new TopicRouter.Builder()
+                .route("measurement/#", handler("measurement"))
+                .build();
+
+        assertEquals(1, router.dispatch("measurement/a", PAYLOAD));
+        assertEquals(1, router.dispatch("measurement/a/b/c", PAYLOAD));
+        assertEquals(1, router.dispatch("measurement", PAYLOAD));
+        assertEquals(0, router.dispatch("measurements/a", PAYLOAD));
+    }
+
+    @Test
+    public void everyMatchingFilterIsInvoked() throws Exception {
+        TopicRouter router = new TopicRouter.Builder()
+                .route("measurement/#", handler("all"))
+                .route("measurement/+", handler("one"))
+                .route("measurement/a", handler("a"))
+                .route("#", handler("root"))
+                .build();
+
+        assertEquals(4, router.dispatch("measurement/a", PAYLOAD));
+        assertEquals(3, router.dispatch("measurement/b", PAYLOAD));
+        assertEquals(2, router.dispatch("measurement/b/c", PAYLOAD));
+    }
+
+    @Test
+    public void wildcardsSkipSystemTopics() throws Exception {
+        TopicRouter router = new TopicRouter.Builder()
+                .route("#", handler("root"))
+                .route("+/broker", handler("any"))
+                .route("$SYS/#", handler("sys"))
+                .build();
+
+        assertEquals(1, router.dispatch("$SYS/broker", PAYLOAD));
+        assertEquals(Arrays.asList("sys $SYS/broker"), mCalls);
+        assertEquals(2, router.dispatch("local/broker", PAYLOAD));
+    }
+
+    @Test
+    public void manySiblingsAreAllFound() throws Exception {
+        TopicRouter.Builder builder = new TopicRouter.Builder();
+        for (int i = 0; i < 1000; i++) {
+            builder.route("measurement/" + i, handler(Integer.toString(i)));
+        }
+        TopicRouter router = builder.build();
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(1, router.dispatch("measurement/" + i, PAYLOAD));
+        }
+        assertEquals(0, router.dispatch("measurement/1000", PAYLOAD));
+    }
+
+    @Test
+    public void rejectsInvalidFilters() {
+        for (String filter : new String[] {"", "a/#/b", "a/b#", "a+/b", "#/a"}) {
+            try {
+                new TopicRouter.Builder().route(filter, handler("bad"));
+                fail("Accepted " + filter);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package wave.caribe.dashboard.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import wave.caribe.dashboard.model.Measurement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventLogTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private static class Recorder implements EventLog.Visitor {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onMeasurement(String uid, Measurement measurement) {
+            StringBuilder event = new StringBuilder(uid).append('@').append(measurement.getTimestamp());
+            for (int i = 0; i < measurement.getCount(); i++) {
+                event.append(' ').append(measurement.getSample(i));
+            }
+            events.add(event.toString());
+        }
+
+        @Override
+        public void onAlert(long timestamp, String alert) {
+            events.add("alert@" + timestamp + " " + alert);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private final List<EventLog> mLogs = new ArrayList<>();
+    private final Measurement mMeasurement = new Measurement();
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "events");
+    }
+
+    @After
+    public void tearDown() {
+        for (EventLog log : mLogs) {
+            log.close();
+        }
+    }
+
+    private EventLog open(long maxBytes) {
+        EventLog log = new EventLog(mDirectory, maxBytes, Long.MAX_VALUE / 2);
+        mLogs.add(log);
+        log.start();
+        return log;
+    }
+
+    // Segments are prepared in the background, appends are dropped until one is ready
+    private void append(EventLog log, String uid, long timestamp, double... samples) throws InterruptedException {
+        mMeasurement.reset(timestamp);
+        for (double sample : samples) {
+            mMeasurement.add(sample);
+        }
+        long written = log.getWrittenCount();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            log.append(uid, mMeasurement);
+            if (log.getWrittenCount() > written) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("No segment ready");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private File[] segments() {
+        File[] segments = mDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        });
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    @Test
+    public void replaysWhatWasWritten() throws Exception {
+        EventLog log = open(Long.MAX_VALUE);
+        append(log, "a", 100, 1, 2.5);
+        append(log, "b", 200);
+        log.appendAlert(300, "Tsunami warning");
+        append(log, "a", 400, -3);
+        log.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(4, log.replay(0, recorder));
+        assertEquals(Arrays.asList("a@100 1.0 2.5", "b@200", "alert@300 Tsunami warning", "a@400 -3.0"),
+                recorder.events);
+    }
+
+    @Test
+    public void replaySkipsOlderEvents() throws Exception {
+        EventLog log = open(Long.MAX_VALUE);
+        append(log, "a", 100, 1);
+        append(log, "a", 200, 2);
+        append(log, "a", 300, 3);
+        log.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, log.replay(200, recorder));
+        assertEquals(Arrays.asList("a@200 2.0", "a@300 3.0"), recorder.events);
+    }
+
+    @Test
+    public void rotatesAcrossSegments() throws Exception {
+        EventLog log = open(Long.MAX_VALUE);
+        double[] samples = new double[100];
+        // About 850 bytes each, three segments at least
+        int count = 3000;
+        for (int i = 0; i < count; i++) {
+            append(log, "sensor-" + (i % 7), i, samples);
+        }
+        log.close();
+
+        assertTrue(segments().length >= 3);
+        Recorder recorder = new Recorder();
+        assertEquals(count, log.replay(0, recorder));
+        for (int i = 0; i < count; i++) {
+            assertTrue(recorder.events.get(i).startsWith("sensor-" + (i % 7) + "@" + i + " "));
+        }
+    }
+
+    @Test
+    public void retentionDropsTheOldestSegments() throws Exception {
+        EventLog log = open(0);
+        double[] samples = new double[100];
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            append(log, "s", i, samples);
+        }
+        log.close();
+
+        Recorder recorder = new Recorder();
+        int visited = log.replay(0, recorder);
+        assertTrue(visited > 0);
+        assertTrue(visited < count);
+        assertTrue(recorder.events.get(visited - 1).startsWith("s@" + (count - 1) + " "));
+    }
+
+    @Test
+    public void corruptRecordEndsOnlyItsSegment() throws Exception {
+        EventLog first = open(Long.MAX_VALUE);
+        append(first, "a", 100, 1);
+        append(first, "a", 200, 2);
+        append(first, "a", 300, 3);
+        first.close();
+
+        File[] segments = segments();
+        // Header, then the first record : length, type, timestamp, uid, count and one sample
+        long secondRecord = 8 + 4 + 1 + 8 + 2 + 1 + 4 + 8;
+        RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+        try {
+            file.seek(secondRecord);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+
+        EventLog second = open(Long.MAX_VALUE);
+        append(second, "b", 400, 4);
+        second.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, second.replay(0, recorder));
+        assertEquals(Arrays.asList("a@100 1.0", "b@400 4.0"), recorder.events);
+    }
+
+    @Test
+    public void recordTooShortForItsFieldsIsNotRead() throws Exception {
+        EventLog log = open(Long.MAX_VALUE);
+        append(log, "a", 100, 1, 2, 3);
+        log.close();
+
+        // Claims three samples in a record that only holds one
+        RandomAccessFile file = new RandomAccessFile(segments()[0], "rw");
+        try {
+            file.seek(8);
+            file.writeInt(1 + 8 + 2 + 1 + 4 + 8);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(0, log.replay(0, new Recorder()));
+    }
+
+    @Test
+    public void appendsAfterCloseAreDropped() throws Exception {
+        EventLog log = open(Long.MAX_VALUE);
+        append(log, "a", 100, 1);
+        log.close();
+
+        mMeasurement.reset(200);
+        log.append("a", mMeasurement);
+        assertEquals(1, log.getWrittenCount());
+        assertEquals(1, log.replay(0, new Recorder()));
+    }
+
+    @Test
+    public void unusableDirectoryIsRetriedWithoutSpinning() throws Exception {
+        // A directory can't be created under a regular file
+        File file = mFolder.newFile();
+        EventLog log = new EventLog(new File(file, "events"), Long.MAX_VALUE, Long.MAX_VALUE);
+        mLogs.add(log);
+        log.start();
+
+        Thread.sleep(200);
+        assertEquals(1, log.getFailedSegmentCount());
+        log.append("a", mMeasurement);
+        assertEquals(0, log.getWrittenCount());
+        assertEquals(1, log.getDroppedCount());
+        assertFalse(new File(file, "events").exists());
+    }
+}
@@ -0,0 +1,148 @@
+package wave.caribe.dashboard.storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import wave.caribe.dashboard.model.Sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SensorCatalogueCacheTest {
+
+    private static final String URL = "https://api.caribewave.info/sensors";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private SensorCatalogueCache mCache;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "sensors.bin");
+        mCache = new SensorCatalogueCache(mFile);
+    }
+
+    private List<Sensor> sensors() {
+        return Arrays.asList(
+                new Sensor("uid-1", "Pointe-\u00e0-Pitre", 16.24, -61.53),
+                new Sensor(null, "Not installed yet", 14.6, -61.07),
+                new Sensor("uid-2", "", -0.5, 180));
+    }
+
+    private void assertSameSensors(List<Sensor> expected, List<Sensor> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Sensor want = expected.get(i);
+            Sensor got = actual.get(i);
+            assertEquals(want.hasUid(), got.hasUid());
+            assertEquals(want.getUid(), got.getUid());
+            assertEquals(want.getName(), got.getName());
+            assertEquals(want.getLatitude(), got.getLatitude(), 0);
+            assertEquals(want.getLongitude(), got.getLongitude(), 0);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v1\"", "Mon, 11 Apr 2016 10:00:00 GMT", sensors()));
+
+        SensorCatalogueCache.Entry entry = new SensorCatalogueCache(mFile).load(URL);
+        assertNotNull(entry);
+        assertEquals(URL, entry.getUrl());
+        assertEquals("\"v1\"", entry.getETag());
+        assertEquals("Mon, 11 Apr 2016 10:00:00 GMT", entry.getLastModified());
+        assertSameSensors(sensors(), entry.getSensors());
+    }
+
+    @Test
+    public void roundTripWithoutValidators() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, null, null, new ArrayList<Sensor>()));
+
+        SensorCatalogueCache.Entry entry = mCache.load(URL);
+        assertNotNull(entry);
+        assertNull(entry.getETag());
+        assertNull(entry.getLastModified());
+        assertEquals(0, entry.getSensors().size());
+    }
+
+    @Test
+    public void saveReplacesThePreviousVersion() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v1\"", null, sensors()));
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v2\"", null, sensors().subList(0, 1)));
+
+        SensorCatalogueCache.Entry entry = mCache.load(URL);
+        assertEquals("\"v2\"", entry.getETag());
+        assertEquals(1, entry.getSensors().size());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingFile() {
+        assertNull(mCache.load(URL));
+    }
+
+    @Test
+    public void otherUrl() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v1\"", null, sensors()));
+        assertNull(mCache.load(URL + "?staging"));
+    }
+
+    @Test
+    public void truncatedFile() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v1\"", null, sensors()));
+        long length = mFile.length();
+
+        for (long size = length - 1; size >= 0; size -= 7) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(size);
+            } finally {
+                file.close();
+            }
+            assertNull("Truncated to " + size, mCache.load(URL));
+        }
+    }
+
+    @Test
+    public void corruptHeader() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, "\"v1\"", null, sensors()));
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.writeInt(0x12345678);
+        } finally {
+            file.close();
+        }
+        assertNull(mCache.load(URL));
+    }
+
+    @Test
+    public void corruptCount() throws Exception {
+        mCache.save(new SensorCatalogueCache.Entry(URL, null, null, sensors()));
+        // Magic, version, URL, then two absent validators
+        long countOffset = 4 + 4 + 2 + URL.length() + 1 + 1;
+
+        for (int count : new int[] {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 4}) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.seek(countOffset);
+                file.writeInt(count);
+            } finally {
+                file.close();
+            }
+            assertNull("Count " + count, mCache.load(URL));
+        }
+    }
+}
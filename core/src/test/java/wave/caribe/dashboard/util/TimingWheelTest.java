@@ -0,0 +1,155 @@
+package wave.caribe.dashboard.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+
+    private static class Recorder implements TimingWheel.Listener {
+        final List<Integer> expired = new ArrayList<>();
+
+        @Override
+        public void onExpired(int key) {
+            expired.add(key);
+        }
+    }
+
+    @Test
+    public void expiresOnlyOnceTheDeadlinePassed() {
+        TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        Recorder recorder = new Recorder();
+        wheel.schedule(1, 25, 0);
+
+        assertEquals(0, wheel.advance(20, recorder));
+        assertTrue(wheel.isScheduled(1));
+        // Rounded up to the tick, never early
+        assertEquals(1, wheel.advance(30, recorder));
+        assertEquals(Arrays.asList(1), recorder.expired);
+        assertFalse(wheel.isScheduled(1));
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void keepsDeadlinesFurtherThanATurn() {
+        TimingWheel wheel = new TimingWheel(4, 10, 4, 0);
+        Recorder recorder = new Recorder();
+        // Same slot as 10ms, three turns later
+        wheel.schedule(0, 130, 0);
+        wheel.schedule(1, 10, 0);
+
+        assertEquals(1, wheel.advance(50, recorder));
+        assertEquals(Arrays.asList(1), recorder.expired);
+        assertEquals(1, wheel.advance(130, recorder));
+        assertEquals(Arrays.asList(1, 0), recorder.expired);
+    }
+
+    @Test
+    public void rescheduleReplacesTheDeadline() {
+        TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        Recorder recorder = new Recorder();
+        wheel.schedule(2, 10, 0);
+        wheel.schedule(2, 50, 0);
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(40, recorder));
+        assertEquals(1, wheel.advance(50, recorder));
+    }
+
+    @Test
+    public void cancelledKeysNeverExpire() {
+        TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        Recorder recorder = new Recorder();
+        wheel.schedule(0, 10, 0);
+        wheel.schedule(1, 10, 0);
+        wheel.cancel(0);
+
+        assertEquals(1, wheel.advance(100, recorder));
+        assertEquals(Arrays.asList(1), recorder.expired);
+    }
+
+    @Test
+    public void listenerMovingTheNextKeyToAnotherSlot() {
+        final TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        // Same slot, walked from the last one scheduled : 2, 1, 0
+        wheel.schedule(0, 10, 0);
+        wheel.schedule(1, 10, 0);
+        wheel.schedule(2, 10, 0);
+        final Recorder recorder = new Recorder();
+
+        int expired = wheel.advance(10, new TimingWheel.Listener() {
+            @Override
+            public void onExpired(int key) {
+                recorder.onExpired(key);
+                if (key == 2) {
+                    wheel.schedule(1, 20, 10);
+                }
+            }
+        });
+
+        assertEquals(2, expired);
+        assertEquals(Arrays.asList(2, 0), recorder.expired);
+        assertTrue(wheel.isScheduled(1));
+        assertEquals(1, wheel.advance(30, recorder));
+        assertEquals(Arrays.asList(2, 0, 1), recorder.expired);
+    }
+
+    @Test
+    public void listenerCancellingTheNextKey() {
+        final TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        wheel.schedule(0, 10, 0);
+        wheel.schedule(1, 10, 0);
+        wheel.schedule(2, 10, 0);
+        final Recorder recorder = new Recorder();
+
+        int expired = wheel.advance(10, new TimingWheel.Listener() {
+            @Override
+            public void onExpired(int key) {
+                recorder.onExpired(key);
+                if (key == 2) {
+                    wheel.cancel(1);
+                }
+            }
+        });
+
+        assertEquals(2, expired);
+        assertEquals(Arrays.asList(2, 0), recorder.expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void listenerReschedulingItself() {
+        final TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        wheel.schedule(3, 10, 0);
+        final Recorder recorder = new Recorder();
+
+        wheel.advance(10, new TimingWheel.Listener() {
+            @Override
+            public void onExpired(int key) {
+                recorder.onExpired(key);
+                // Never in the slot being walked, so it can't expire twice in a row
+                wheel.schedule(key, 0, 10);
+            }
+        });
+
+        assertEquals(Arrays.asList(3), recorder.expired);
+        assertTrue(wheel.isScheduled(3));
+        assertEquals(1, wheel.advance(20, recorder));
+    }
+
+    @Test
+    public void skipsTheIdleTime() {
+        TimingWheel wheel = new TimingWheel(4, 10, 8, 0);
+        Recorder recorder = new Recorder();
+        wheel.schedule(0, 10, 1000000);
+
+        assertEquals(0, wheel.advance(1000000, recorder));
+        assertEquals(1, wheel.advance(1000010, recorder));
+    }
+}
@@ -0,0 +1,101 @@
+package wave.caribe.dashboard.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Stand-in for the allPlacesInfos sensor API, serving a synthetic fleet.
+ *
+ * Like the real one it honours If-None-Match and gzip, so the app can be pointed
+ * at it (pref_sensor_api) as well as the load test.
+ */
+class CatalogueEndpoint {
+
+    static final String PATH = "/allPlacesInfos";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+    private final byte[] mBody;
+    private final byte[] mGzippedBody;
+    private final String mETag;
+
+    CatalogueEndpoint(int port, List<Sensor> sensors) throws IOException {
+        mBody = SyntheticFleet.json(sensors).getBytes(Charset.forName("UTF-8"));
+        mGzippedBody = gzip(mBody);
+        mETag = "\"" + Integer.toHexString(Arrays.hashCode(mBody)) + "\"";
+
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.setExecutor(mExecutor);
+    }
+
+    void start() {
+        mServer.start();
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdown();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + mServer.getAddress().getPort() + PATH;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("ETag", mETag);
+            if (mETag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            byte[] body = mBody;
+            String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (encoding != null && encoding.contains("gzip")) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                body = mGzippedBody;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,300 @@
+package wave.caribe.dashboard.loadtest;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Publishes the traffic of a sensor fleet following a LoadProfile.
+ *
+ * Each publisher connection runs on its own thread and sends its share of the
+ * rate, spread evenly over time. A publisher that can't keep up (too many
+ * messages in flight) falls behind and catches up as fast as it can, the gap
+ * between what was due and what was sent is reported.
+ *
+ * Measurements go to "measurement/<uid>" as [[time, x, y, z], ...] and alerts to
+ * "alert/general". Times are in nanoseconds since the epoch of the run, so that
+ * the receiving side can tell how long the message took.
+ */
+class FleetSimulator {
+
+    static final String MEASUREMENT_TOPIC = "measurement/";
+    static final String ALERT_TOPIC = "alert/general";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Paho refuses to have more than 10 QoS 1 and 2 messages in flight. QoS 0
+    // messages are only bounded to keep a slow broker from filling the heap
+    private static final int QOS_WINDOW = 10;
+    private static final int QOS_0_WINDOW = 1000;
+
+    // Random x, y, z triplets the payloads are made of
+    private static final int AXES_POOL_SIZE = 256;
+
+    private final LoadProfile mProfile;
+    private final String mBrokerUri;
+    private final List<Sensor> mSensors;
+    private final long mEpochNs;
+
+    private final List<Publisher> mPublishers = new ArrayList<>();
+
+    private final AtomicLong mDue = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mAlerts = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    FleetSimulator(LoadProfile profile, String brokerUri, List<Sensor> sensors, long epochNs) {
+        mProfile = profile;
+        mBrokerUri = brokerUri;
+        mSensors = sensors;
+        mEpochNs = epochNs;
+    }
+
+    void connect() throws MqttException {
+        for (int i = 0; i < mProfile.publishers; i++) {
+            Publisher publisher = new Publisher(i);
+            publisher.connect();
+            mPublishers.add(publisher);
+        }
+    }
+
+    /**
+     * Publishes for the duration of the profile, then returns.
+     */
+    void run() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (final Publisher publisher : mPublishers) {
+            Thread thread = new Thread(publisher, "Publisher " + publisher.mIndex);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Waits for the messages still in flight, at most timeoutMs.
+     */
+    void drain(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (Publisher publisher : mPublishers) {
+            while (publisher.mWindow.availablePermits() < publisher.mWindowSize && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    void close() {
+        for (Publisher publisher : mPublishers) {
+            publisher.close();
+        }
+    }
+
+    // Measurements the profile asked for so far
+    long getDue() {
+        return mDue.get();
+    }
+
+    // Measurements handed to Paho
+    long getSent() {
+        return mSent.get();
+    }
+
+    // Measurements and alerts acknowledged, or written for QoS 0
+    long getDelivered() {
+        return mDelivered.get();
+    }
+
+    long getFailed() {
+        return mFailed.get();
+    }
+
+    long getAlerts() {
+        return mAlerts.get();
+    }
+
+    long getBytes() {
+        return mBytes.get();
+    }
+
+    private class Publisher implements Runnable {
+
+        private final int mIndex;
+        private final Random mRandom;
+        private final int mWindowSize;
+        private final Semaphore mWindow;
+        private final String[] mAxes = new String[AXES_POOL_SIZE];
+        private final StringBuilder mPayload = new StringBuilder();
+        private MqttAsyncClient mClient;
+
+        private final IMqttActionListener mDeliveryListener = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                mDelivered.incrementAndGet();
+                mWindow.release();
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable e) {
+                mFailed.incrementAndGet();
+                mWindow.release();
+            }
+        };
+
+        Publisher(int index) {
+            mIndex = index;
+            mRandom = new Random(mProfile.seed + index);
+            mWindowSize = mProfile.qos == 0 ? QOS_0_WINDOW : QOS_WINDOW;
+            mWindow = new Semaphore(mWindowSize);
+            for (int i = 0; i < AXES_POOL_SIZE; i++) {
+                mAxes[i] = String.format(Locale.US, "%.4f, %.4f, %.4f",
+                        mRandom.nextGaussian(), mRandom.nextGaussian(), mRandom.nextGaussian());
+            }
+        }
+
+        void connect() throws MqttException {
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            mClient = new MqttAsyncClient(mBrokerUri, "loadtest_publisher_" + mIndex, new MemoryPersistence());
+            mClient.connect(options).waitForCompletion();
+        }
+
+        @Override
+        public void run() {
+            double share = 1.0 / mProfile.publishers;
+            long durationNs = (long) (mProfile.durationS * 1e9);
+            long alertIntervalNs = (long) (mProfile.alertIntervalS * 1e9);
+            // Only the first publisher sends alerts
+            long nextAlertNs = mIndex == 0 && alertIntervalNs > 0 ? alertIntervalNs : Long.MAX_VALUE;
+
+            long start = System.nanoTime();
+            long last = start;
+            double credit = 0;
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long elapsed = now - start;
+                    if (elapsed >= durationNs) {
+                        break;
+                    }
+
+                    double rate = mProfile.rateAt(elapsed / 1e9) * share;
+                    double due = rate * (now - last) / 1e9;
+                    credit += due;
+                    last = now;
+
+                    int count = (int) credit;
+                    mDue.addAndGet(count);
+                    credit -= count;
+                    for (int i = 0; i < count && System.nanoTime() - start < durationNs; i++) {
+                        publishMeasurement();
+                    }
+
+                    if (elapsed >= nextAlertNs) {
+                        publishAlert();
+                        nextAlertNs += alertIntervalNs;
+                    }
+
+                    if (count == 0) {
+                        LockSupport.parkNanos(200000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void publishMeasurement() throws InterruptedException {
+            Sensor sensor = mSensors.get(mRandom.nextInt(mSensors.size()));
+            long sent = System.nanoTime() - mEpochNs;
+
+            mPayload.setLength(0);
+            mPayload.append('[');
+            for (int i = 0; i < mProfile.samples; i++) {
+                if (i > 0) {
+                    mPayload.append(',');
+                }
+                // 100 Hz sensors, the first sample is the one we time
+                mPayload.append('[').append(sent + i * 10000000L).append(", ")
+                        .append(mAxes[mRandom.nextInt(AXES_POOL_SIZE)]).append(']');
+            }
+            mPayload.append(']');
+
+            if (publish(MEASUREMENT_TOPIC + sensor.getUid(), mPayload.toString())) {
+                mSent.incrementAndGet();
+            }
+        }
+
+        private void publishAlert() throws InterruptedException {
+            mPayload.setLength(0);
+            mPayload.append("{\"message\": \"Load test alert ").append(mAlerts.get() + 1).append("\", \"sensors_uids\": [");
+            for (int i = 0; i < Math.min(mProfile.alertSensors, mSensors.size()); i++) {
+                if (i > 0) {
+                    mPayload.append(", ");
+                }
+                mPayload.append('"').append(mSensors.get(mRandom.nextInt(mSensors.size())).getUid()).append('"');
+            }
+            mPayload.append("], \"sent\": ").append(System.nanoTime() - mEpochNs).append('}');
+
+            if (publish(ALERT_TOPIC, mPayload.toString())) {
+                mAlerts.incrementAndGet();
+            }
+        }
+
+        private boolean publish(String topic, String payload) throws InterruptedException {
+            byte[] bytes = payload.getBytes(ASCII);
+            MqttMessage message = new MqttMessage(bytes);
+            message.setQos(mProfile.qos);
+
+            mWindow.acquire();
+            while (true) {
+                try {
+                    mClient.publish(topic, message, null, mDeliveryListener);
+                    mBytes.addAndGet(bytes.length);
+                    return true;
+                } catch (MqttException e) {
+                    if (e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT) {
+                        // Paho tells us about a delivery before it frees its slot
+                        LockSupport.parkNanos(100000);
+                        continue;
+                    }
+                    mFailed.incrementAndGet();
+                    mWindow.release();
+                    return false;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                if (mClient.isConnected()) {
+                    mClient.disconnect().waitForCompletion();
+                }
+                mClient.close();
+            } catch (MqttException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package wave.caribe.dashboard.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import wave.caribe.dashboard.MQTT.IngestionQueue;
+import wave.caribe.dashboard.MQTT.MessageDispatcher;
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Measurement;
+import wave.caribe.dashboard.model.Sensor;
+import wave.caribe.dashboard.model.SensorCatalogue;
+import wave.caribe.dashboard.services.SensorListParser;
+import wave.caribe.dashboard.state.DashboardState;
+import wave.caribe.dashboard.state.DashboardStore;
+import wave.caribe.dashboard.util.TimingWheel;
+
+/**
+ * Caribe Wave Android App
+ *
+ * The receiving end of the load test : the app's ingestion path without the map.
+ *
+ * Messages arrive on a Paho client and go through the MessageDispatcher, as in
+ * MQTTClient. Measurements are then queued in an IngestionQueue drained on a
+ * single "UI" thread, at the app's interval and batch size, into a DashboardStore
+ * with warnings and alerts expiring on a TimingWheel, as in MainActivity.
+ *
+ * Latencies are measured from the publication time carried by the messages, to
+ * their dispatch (broker and decoding) and to their application to the store
+ * (queueing on top). A coalesced measurement is timed by the one that replaced it.
+ */
+class IngestionProbe {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // As in the app
+    private static final int SUBSCRIPTION_QOS = 1;
+    private static final long WARNING_DISPLAY_MS = 5000;
+    private static final int EXPIRY_TICK_MS = 250;
+    private static final int EXPIRY_SLOTS = 512;
+    private static final int EXPIRY_KEY_MESSAGE = 0;
+    private static final int EXPIRY_KEY_FIRST_SENSOR = 1;
+
+    private final Histogram mDispatchLatency = MetricsRegistry.getDefault().histogram("loadtest.latency.dispatch");
+    private final Histogram mAppliedLatency = MetricsRegistry.getDefault().histogram("loadtest.latency.applied");
+    private final Histogram mAlertLatency = MetricsRegistry.getDefault().histogram("loadtest.latency.alert");
+
+    private final LoadProfile mProfile;
+    private final long mEpochNs;
+
+    private final IngestionQueue mQueue;
+    private final DashboardStore mStore = new DashboardStore(DashboardState.EMPTY);
+    private final ScheduledExecutorService mUiThread = Executors.newSingleThreadScheduledExecutor();
+    private MqttAsyncClient mClient;
+
+    // Only touched from the UI thread
+    private TimingWheel mExpiries;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mAlerts = new AtomicLong();
+    private final AtomicLong mApplied = new AtomicLong();
+    private final AtomicLong mUnknown = new AtomicLong();
+    private final AtomicLong mConnectionsLost = new AtomicLong();
+
+    private final MessageDispatcher mDispatcher = new MessageDispatcher(new MessageDispatcher.Sink() {
+        @Override
+        public void onMeasurement(String uid, Measurement measurement) {
+            mReceived.incrementAndGet();
+            mDispatchLatency.record(latencyUs(measurement));
+            mQueue.offer(uid, measurement);
+        }
+
+        @Override
+        public void onAlert(String topic, byte[] payload) {
+            final JsonObject alert;
+            try {
+                alert = new JsonParser().parse(new String(payload, UTF_8)).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            mAlerts.incrementAndGet();
+            // Alerts skip the queue, as in the app
+            mUiThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    showAlert(alert);
+                }
+            });
+        }
+
+        @Override
+        public void onRejected(String topic, String reason) {
+            if (mRejected.incrementAndGet() <= 10) {
+                System.err.println(reason + " (" + topic + ")");
+            }
+        }
+    });
+
+    private final IngestionQueue.Consumer mConsumer = new IngestionQueue.Consumer() {
+        @Override
+        public void accept(String uid, Measurement measurement) {
+            updateState(uid);
+            mApplied.incrementAndGet();
+            mAppliedLatency.record(latencyUs(measurement));
+        }
+    };
+
+    private final TimingWheel.Listener mExpiryListener = new TimingWheel.Listener() {
+        @Override
+        public void onExpired(int key) {
+            if (key == EXPIRY_KEY_MESSAGE) {
+                mStore.update(new DashboardStore.Update() {
+                    @Override
+                    public void apply(DashboardState.Builder state) {
+                        state.clearAlert();
+                    }
+                });
+            } else {
+                final int id = key - EXPIRY_KEY_FIRST_SENSOR;
+                mStore.update(new DashboardStore.Update() {
+                    @Override
+                    public void apply(DashboardState.Builder state) {
+                        state.setState(id, state.restingState(id));
+                    }
+                });
+            }
+        }
+    };
+
+    IngestionProbe(LoadProfile profile, long epochNs) {
+        mProfile = profile;
+        mEpochNs = epochNs;
+        mQueue = new IngestionQueue(profile.queueCapacity);
+    }
+
+    /**
+     * Fetches the sensor list like the app does, gzip included.
+     *
+     * @return the number of sensors
+     */
+    int loadCatalogue(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        final List<Sensor> sensors = new ArrayList<>();
+        try {
+            InputStream in = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            SensorListParser.parse(in, new SensorListParser.SensorSink() {
+                @Override
+                public void onSensor(Sensor sensor) {
+                    sensors.add(sensor);
+                }
+            });
+        } finally {
+            connection.disconnect();
+        }
+
+        final SensorCatalogue catalogue = SensorCatalogue.build(sensors);
+        mExpiries = new TimingWheel(EXPIRY_KEY_FIRST_SENSOR + catalogue.size(), EXPIRY_TICK_MS, EXPIRY_SLOTS, nowMs());
+        mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setCatalogue(catalogue);
+            }
+        });
+        return catalogue.size();
+    }
+
+    /**
+     * Connects and subscribes like MQTTClient, then starts draining.
+     */
+    void connect(String brokerUri) throws MqttException {
+        mDispatcher.setRoutes(FleetSimulator.MEASUREMENT_TOPIC + "#", FleetSimulator.ALERT_TOPIC);
+
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        options.setKeepAliveInterval(3600);
+        mClient = new MqttAsyncClient(brokerUri, "loadtest_probe", new MemoryPersistence());
+        mClient.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                mConnectionsLost.incrementAndGet();
+                System.err.println("Probe connection lost : " + cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                mDispatcher.dispatch(topic, message.getPayload());
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        mClient.connect(options).waitForCompletion();
+        mClient.subscribe(new String[] {FleetSimulator.MEASUREMENT_TOPIC + "#", FleetSimulator.ALERT_TOPIC},
+                new int[] {SUBSCRIPTION_QOS, SUBSCRIPTION_QOS}).waitForCompletion();
+
+        mUiThread.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                mQueue.drain(mConsumer, mProfile.drainBatch);
+                mExpiries.advance(nowMs(), mExpiryListener);
+            }
+        }, mProfile.drainIntervalMs, mProfile.drainIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the queue is empty and nothing arrived for quietMs, at most timeoutMs.
+     */
+    void settle(long quietMs, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        long received = -1;
+        long quietSince = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            if (mReceived.get() != received || mQueue.size() > 0) {
+                received = mReceived.get();
+                quietSince = System.nanoTime();
+            } else if (System.nanoTime() - quietSince >= TimeUnit.MILLISECONDS.toNanos(quietMs)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    void close() {
+        mUiThread.shutdownNow();
+        try {
+            if (mClient != null) {
+                if (mClient.isConnected()) {
+                    mClient.disconnect().waitForCompletion();
+                }
+                mClient.close();
+            }
+        } catch (MqttException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void updateState(final String uid) {
+        final long now = System.currentTimeMillis();
+        DashboardState state = mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setLastMeasurementTime(now);
+                if (state.isAlertInProgress()) {
+                    return;
+                }
+                SensorCatalogue catalogue = state.getCatalogue();
+                for (int id = catalogue.indexOf(uid); id >= 0; id = catalogue.nextIndexOf(id)) {
+                    if (state.getState(id) != DashboardState.STATE_ALERT) {
+                        state.setState(id, DashboardState.STATE_WARNING);
+                    }
+                }
+            }
+        });
+
+        SensorCatalogue catalogue = state.getCatalogue();
+        if (catalogue.indexOf(uid) < 0) {
+            mUnknown.incrementAndGet();
+            return;
+        }
+        if (state.isAlertInProgress()) {
+            return;
+        }
+        for (int id = catalogue.indexOf(uid); id >= 0; id = catalogue.nextIndexOf(id)) {
+            if (state.getState(id) == DashboardState.STATE_WARNING) {
+                mExpiries.schedule(EXPIRY_KEY_FIRST_SENSOR + id, WARNING_DISPLAY_MS, nowMs());
+                mExpiries.schedule(EXPIRY_KEY_MESSAGE, WARNING_DISPLAY_MS, nowMs());
+            }
+        }
+    }
+
+    private void showAlert(JsonObject alert) {
+        final long displayMs = (long) (mProfile.alertDisplayS * 1000);
+        final String message = alert.has("message") ? alert.get("message").getAsString() : "";
+        final JsonArray uids = alert.has("sensors_uids") ? alert.getAsJsonArray("sensors_uids") : new JsonArray();
+        DashboardState state = mStore.update(new DashboardStore.Update() {
+            @Override
+            public void apply(DashboardState.Builder state) {
+                state.setAlert(message, System.currentTimeMillis());
+                SensorCatalogue catalogue = state.getCatalogue();
+                for (JsonElement uid : uids) {
+                    for (int id = catalogue.indexOf(uid.getAsString()); id >= 0; id = catalogue.nextIndexOf(id)) {
+                        state.setState(id, DashboardState.STATE_ALERT);
+                    }
+                }
+            }
+        });
+
+        SensorCatalogue catalogue = state.getCatalogue();
+        for (JsonElement uid : uids) {
+            for (int id = catalogue.indexOf(uid.getAsString()); id >= 0; id = catalogue.nextIndexOf(id)) {
+                mExpiries.schedule(EXPIRY_KEY_FIRST_SENSOR + id, displayMs, nowMs());
+            }
+        }
+        mExpiries.schedule(EXPIRY_KEY_MESSAGE, displayMs, nowMs());
+
+        if (alert.has("sent")) {
+            mAlertLatency.record((System.nanoTime() - mEpochNs - alert.get("sent").getAsLong()) / 1000);
+        }
+    }
+
+    // The first sample holds the publication time
+    private long latencyUs(Measurement measurement) {
+        if (measurement.getCount() == 0) {
+            return 0;
+        }
+        return (System.nanoTime() - mEpochNs - (long) measurement.getSample(0)) / 1000;
+    }
+
+    private long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    long getReceived() {
+        return mReceived.get();
+    }
+
+    long getApplied() {
+        return mApplied.get();
+    }
+
+    long getAlerts() {
+        return mAlerts.get();
+    }
+
+    long getRejected() {
+        return mRejected.get();
+    }
+
+    long getUnknown() {
+        return mUnknown.get();
+    }
+
+    long getConnectionsLost() {
+        return mConnectionsLost.get();
+    }
+
+    long getCoalesced() {
+        return mQueue.getCoalescedCount();
+    }
+
+    long getDropped() {
+        return mQueue.getDroppedCount();
+    }
+
+    Histogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    Histogram getAppliedLatency() {
+        return mAppliedLatency;
+    }
+
+    Histogram getAlertLatency() {
+        return mAlertLatency;
+    }
+}
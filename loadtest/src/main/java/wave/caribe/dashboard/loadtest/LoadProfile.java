@@ -0,0 +1,185 @@
+package wave.caribe.dashboard.loadtest;
+
+import java.util.Locale;
+
+/**
+ * Caribe Wave Android App
+ *
+ * What the simulated fleet sends, read from the command line.
+ *
+ * The measurement rate follows one of three shapes :
+ *
+ *   steady   the base rate all along
+ *   burst    the base rate, times the burst factor for the first burst-length
+ *            seconds of every burst-period
+ *   ramp     from zero up to the base rate at the end of the run
+ */
+public class LoadProfile {
+
+    public enum Shape {
+        STEADY,
+        BURST,
+        RAMP
+    }
+
+    static final String USAGE =
+            "Options, with their default value :\n"
+            + "  --sensors 1000          size of the fleet\n"
+            + "  --rate 500              measurements per second, the base rate of the shape\n"
+            + "  --shape steady          steady, burst or ramp\n"
+            + "  --burst-period 10       seconds between the start of two bursts\n"
+            + "  --burst-length 1        seconds a burst lasts\n"
+            + "  --burst-factor 10       rate multiplier during a burst\n"
+            + "  --samples 10            samples per measurement, each one [time, x, y, z]\n"
+            + "  --alert-interval 0      seconds between two general alerts, 0 for none\n"
+            + "  --alert-sensors 10      sensors named in an alert\n"
+            + "  --alert-display 120     seconds an alert stays on, measurements don't show meanwhile\n"
+            + "  --duration 30           seconds of traffic\n"
+            + "  --publishers 4          publishing connections\n"
+            + "  --qos 1                 QoS of the published messages\n"
+            + "  --queue 256             capacity of the ingestion queue\n"
+            + "  --drain-interval 100    milliseconds between two drains of the queue\n"
+            + "  --drain-batch 64        measurements taken per drain\n"
+            + "  --mqtt-port 1883        port of the local broker\n"
+            + "  --http-port 8088        port of the sensor list endpoint\n"
+            + "  --seed 42               seed of the fleet and of the traffic\n";
+
+    int sensors = 1000;
+    double rate = 500;
+    Shape shape = Shape.STEADY;
+    double burstPeriodS = 10;
+    double burstLengthS = 1;
+    double burstFactor = 10;
+    int samples = 10;
+    double alertIntervalS = 0;
+    int alertSensors = 10;
+    double alertDisplayS = 120;
+    double durationS = 30;
+    int publishers = 4;
+    int qos = 1;
+    // The defaults are those of the app
+    int queueCapacity = 256;
+    int drainIntervalMs = 100;
+    int drainBatch = 64;
+    int mqttPort = 1883;
+    int httpPort = 8088;
+    long seed = 42;
+
+    /**
+     * @throws IllegalArgumentException on an unknown option or a bad value
+     */
+    static LoadProfile parse(String[] args) {
+        LoadProfile profile = new LoadProfile();
+        for (int i = 0; i < args.length; i += 2) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[i + 1];
+            try {
+                switch (option) {
+                    case "--sensors":
+                        profile.sensors = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--rate":
+                        profile.rate = Double.parseDouble(value);
+                        break;
+                    case "--shape":
+                        profile.shape = Shape.valueOf(value.toUpperCase(Locale.US));
+                        break;
+                    case "--burst-period":
+                        profile.burstPeriodS = Double.parseDouble(value);
+                        break;
+                    case "--burst-length":
+                        profile.burstLengthS = Double.parseDouble(value);
+                        break;
+                    case "--burst-factor":
+                        profile.burstFactor = Double.parseDouble(value);
+                        break;
+                    case "--samples":
+                        profile.samples = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--alert-interval":
+                        profile.alertIntervalS = Double.parseDouble(value);
+                        break;
+                    case "--alert-sensors":
+                        profile.alertSensors = Integer.parseInt(value);
+                        break;
+                    case "--alert-display":
+                        profile.alertDisplayS = Double.parseDouble(value);
+                        break;
+                    case "--duration":
+                        profile.durationS = Double.parseDouble(value);
+                        break;
+                    case "--publishers":
+                        profile.publishers = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--qos":
+                        profile.qos = Integer.parseInt(value);
+                        if (profile.qos < 0 || profile.qos > 2) {
+                            throw new IllegalArgumentException("QoS must be 0, 1 or 2 : " + value);
+                        }
+                        break;
+                    case "--queue":
+                        profile.queueCapacity = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--drain-interval":
+                        profile.drainIntervalMs = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--drain-batch":
+                        profile.drainBatch = positive(option, Integer.parseInt(value));
+                        break;
+                    case "--mqtt-port":
+                        profile.mqttPort = Integer.parseInt(value);
+                        break;
+                    case "--http-port":
+                        profile.httpPort = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        profile.seed = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + option + " : " + value);
+            }
+        }
+        if (profile.shape == Shape.BURST && (profile.burstPeriodS <= 0 || profile.burstLengthS > profile.burstPeriodS)) {
+            throw new IllegalArgumentException("Bursts must last less than their period");
+        }
+        return profile;
+    }
+
+    private static int positive(String option, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(option + " must be positive : " + value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the measurement rate at the given time of the run, in messages per second
+     */
+    public double rateAt(double timeS) {
+        switch (shape) {
+            case BURST:
+                return timeS % burstPeriodS < burstLengthS ? rate * burstFactor : rate;
+            case RAMP:
+                return rate * Math.min(1, timeS / durationS);
+            default:
+                return rate;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String traffic = String.format(Locale.US, "%d sensors, %.0f msg/s %s", sensors, rate, shape.name().toLowerCase(Locale.US));
+        if (shape == Shape.BURST) {
+            traffic += String.format(Locale.US, " (x%.0f for %.1fs every %.1fs)", burstFactor, burstLengthS, burstPeriodS);
+        }
+        return traffic + String.format(Locale.US, ", %d samples per measurement, QoS %d, %.0fs over %d connection(s)%s",
+                samples, qos, durationS, publishers,
+                alertIntervalS > 0 ? String.format(Locale.US, ", an alert every %.1fs", alertIntervalS) : "");
+    }
+}
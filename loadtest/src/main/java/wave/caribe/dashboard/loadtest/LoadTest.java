@@ -0,0 +1,152 @@
+package wave.caribe.dashboard.loadtest;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import wave.caribe.dashboard.metrics.Histogram;
+import wave.caribe.dashboard.metrics.MetricsRegistry;
+import wave.caribe.dashboard.model.Sensor;
+
+/**
+ * Caribe Wave Android App
+ *
+ * Load test of the ingestion path, entirely on this machine : a local broker and
+ * sensor API, a simulated fleet publishing to them, and the app's ingestion path
+ * receiving, with a report of throughput, drops and latencies.
+ *
+ *   ./gradlew :loadtest:run -Poptions="--rate 2000 --shape burst --duration 60"
+ *
+ * While it runs, the app itself can be pointed at this machine (pref_url,
+ * pref_sensor_api) to watch the same traffic on a device.
+ */
+public class LoadTest {
+
+    private static final long PUBLISH_DRAIN_TIMEOUT_MS = 10000;
+    private static final long SETTLE_QUIET_MS = 1000;
+    private static final long SETTLE_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        LoadProfile profile;
+        try {
+            profile = LoadProfile.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadProfile.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        System.exit(new LoadTest(profile).run() ? 0 : 1);
+    }
+
+    private final LoadProfile mProfile;
+    // Time origin of the payloads, the publishers and the probe share the clock
+    private final long mEpochNs = System.nanoTime();
+
+    LoadTest(LoadProfile profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * @return false if the probe didn't get the whole sensor list
+     */
+    boolean run() throws Exception {
+        List<Sensor> sensors = SyntheticFleet.sensors(mProfile.sensors, mProfile.seed);
+
+        LocalBroker broker = new LocalBroker(mProfile.mqttPort);
+        CatalogueEndpoint endpoint = new CatalogueEndpoint(mProfile.httpPort, sensors);
+        final IngestionProbe probe = new IngestionProbe(mProfile, mEpochNs);
+        final FleetSimulator fleet = new FleetSimulator(mProfile, broker.getUri(), sensors, mEpochNs);
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+
+        try {
+            broker.start();
+            endpoint.start();
+            System.out.println("Broker on " + broker.getUri() + ", sensor list on " + endpoint.getUrl());
+
+            int loaded = probe.loadCatalogue(endpoint.getUrl());
+            if (loaded != sensors.size()) {
+                System.err.println("The probe got " + loaded + " sensors out of " + sensors.size());
+                return false;
+            }
+            probe.connect(broker.getUri());
+            fleet.connect();
+
+            System.out.println("Traffic : " + mProfile);
+            progress.scheduleAtFixedRate(new Runnable() {
+                private long mStart = System.nanoTime();
+                private long mSent = 0;
+                private long mReceived = 0;
+                private long mApplied = 0;
+
+                @Override
+                public void run() {
+                    long sent = fleet.getSent();
+                    long received = probe.getReceived();
+                    long applied = probe.getApplied();
+                    System.out.println(String.format(Locale.US,
+                            "%5.0fs  sent %6d/s  received %6d/s  applied %6d/s  coalesced %8d  dropped %8d  p99 %s",
+                            (System.nanoTime() - mStart) / 1e9, sent - mSent, received - mReceived, applied - mApplied,
+                            probe.getCoalesced(), probe.getDropped(), millis(probe.getAppliedLatency().getPercentile(0.99))));
+                    mSent = sent;
+                    mReceived = received;
+                    mApplied = applied;
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+
+            long start = System.nanoTime();
+            fleet.run();
+            double elapsedS = (System.nanoTime() - start) / 1e9;
+            fleet.drain(PUBLISH_DRAIN_TIMEOUT_MS);
+            probe.settle(SETTLE_QUIET_MS, SETTLE_TIMEOUT_MS);
+            progress.shutdownNow();
+
+            report(fleet, probe, elapsedS);
+            return true;
+        } finally {
+            progress.shutdownNow();
+            fleet.close();
+            probe.close();
+            endpoint.stop();
+            broker.stop();
+        }
+    }
+
+    private void report(FleetSimulator fleet, IngestionProbe probe, double elapsedS) {
+        long sent = fleet.getSent();
+        long lost = sent - probe.getReceived();
+
+        StringBuilder out = new StringBuilder("\n");
+        out.append(String.format(Locale.US, "Published   %d measurements in %.1fs, %.0f/s (%d due), %d alert(s), %.1f MB, %d acknowledged, %d failed%n",
+                sent, elapsedS, sent / elapsedS, fleet.getDue(), fleet.getAlerts(), fleet.getBytes() / 1e6,
+                fleet.getDelivered(), fleet.getFailed()));
+        out.append(String.format(Locale.US, "Received    %d measurements, %.0f/s, %d lost (%.2f%%), %d alert(s) of %d%n",
+                probe.getReceived(), probe.getReceived() / elapsedS, lost, sent > 0 ? 100.0 * lost / sent : 0,
+                probe.getAlerts(), fleet.getAlerts()));
+        out.append(String.format(Locale.US, "Ingestion   %d applied, %d coalesced, %d dropped by the queue, %d unknown sensor(s), %d rejected%n",
+                probe.getApplied(), probe.getCoalesced(), probe.getDropped(), probe.getUnknown(), probe.getRejected()));
+        if (probe.getConnectionsLost() > 0) {
+            out.append(String.format(Locale.US, "Connection  lost %d time(s)%n", probe.getConnectionsLost()));
+        }
+        out.append(latency("Dispatched", probe.getDispatchLatency()));
+        out.append(latency("Applied", probe.getAppliedLatency()));
+        if (fleet.getAlerts() > 0) {
+            out.append(latency("Alerts", probe.getAlertLatency()));
+        }
+        out.append("\n").append(MetricsRegistry.getDefault().format());
+        System.out.print(out);
+    }
+
+    private static String latency(String what, Histogram histogram) {
+        return String.format(Locale.US, "%-11s p50 %s  p90 %s  p99 %s  max %s%n", what,
+                millis(histogram.getPercentile(0.5)), millis(histogram.getPercentile(0.9)),
+                millis(histogram.getPercentile(0.99)), millis(histogram.getMax()));
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.1f ms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,56 @@
+package wave.caribe.dashboard.loadtest;
+
+import org.apache.activemq.broker.BrokerService;
+
+import java.io.IOException;
+
+/**
+ * Caribe Wave Android App
+ *
+ * An embedded ActiveMQ broker, with its MQTT transport, standing in for the
+ * production one.
+ *
+ * It accepts any user name and password, the app defaults included, and keeps
+ * its sessions in memory only : every run starts from a clean broker.
+ */
+class LocalBroker {
+
+    private final BrokerService mBroker = new BrokerService();
+    private final int mPort;
+    private boolean mStarted = false;
+
+    LocalBroker(int port) {
+        mPort = port;
+    }
+
+    void start() throws IOException {
+        // No store, no session left over from a previous run
+        mBroker.setPersistent(false);
+        mBroker.setUseJmx(false);
+        mBroker.setBrokerName("loadtest");
+        try {
+            mBroker.addConnector("mqtt://0.0.0.0:" + mPort);
+            mBroker.start();
+        } catch (Exception e) {
+            throw new IOException("Could not start the broker on port " + mPort, e);
+        }
+        mBroker.waitUntilStarted();
+        mStarted = true;
+    }
+
+    void stop() {
+        if (mStarted) {
+            try {
+                mBroker.stop();
+                mBroker.waitUntilStopped();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mStarted = false;
+        }
+    }
+
+    String getUri() {
+        return "tcp://localhost:" + mPort;
+    }
+}